@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of buffers in a few size classes, direct or heap. A request is served from the smallest
+ * class that fits it; one larger than every class gets an unpooled heap buffer of exactly that
+ * size, so a rare large packet does not pin a large buffer.
+ *
+ * Each class allocates at most its limit. {@link #acquire} goes past it for a burst and leaves
+ * the extra buffers to the garbage collector when released, while {@link #tryAcquire} refuses,
+ * so a receive loop can bound how much memory queued packets hold.
+ */
+public class BufferPool {
+    private final boolean direct;
+    // ascending
+    private final int[] sizes;
+    private final int[] limits;
+    private final List<BlockingQueue<ByteBuffer>> free;
+    private final AtomicIntegerArray created;
+    private final LongAdder allocated = new LongAdder();
+
+    public BufferPool(int bufferSize, int maxRetained, boolean direct) {
+        this(new int[] {bufferSize}, new int[] {maxRetained}, direct);
+    }
+
+    /** Classes of the given sizes, in ascending order, each holding up to its limit. */
+    public BufferPool(int[] classSizes, int[] classLimits, boolean direct) {
+        if (classSizes.length == 0 || classSizes.length != classLimits.length) {
+            throw new IllegalArgumentException("Need one limit per size class");
+        }
+        this.direct = direct;
+        this.sizes = classSizes.clone();
+        this.limits = classLimits.clone();
+        this.free = new ArrayList<>(sizes.length);
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0 && sizes[i] <= sizes[i - 1]) {
+                throw new IllegalArgumentException("Size classes must ascend: " + Arrays.toString(sizes));
+            }
+            free.add(new ArrayBlockingQueue<>(limits[i]));
+        }
+        this.created = new AtomicIntegerArray(sizes.length);
+    }
+
+    /** A buffer of at least the given capacity. */
+    public ByteBuffer acquire(int capacity) {
+        int index = classFor(capacity);
+        if (index < 0) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer buffer = free.get(index).poll();
+        if (buffer == null) {
+            created.incrementAndGet(index);
+            return allocate(index);
+        }
+        return buffer;
+    }
+
+    /**
+     * A pooled buffer of at least the given capacity, or null if its class has handed out
+     * its limit and none has come back, or no class is large enough.
+     */
+    public ByteBuffer tryAcquire(int capacity) {
+        int index = classFor(capacity);
+        if (index < 0) {
+            return null;
+        }
+        ByteBuffer buffer = free.get(index).poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        int count;
+        do {
+            count = created.get(index);
+            if (count >= limits[index]) {
+                return null;
+            }
+        } while (!created.compareAndSet(index, count, count + 1));
+        return allocate(index);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct) {
+            return;
+        }
+        int index = Arrays.binarySearch(sizes, buffer.capacity());
+        if (index >= 0) {
+            buffer.clear();
+            if (!free.get(index).offer(buffer)) {
+                // one of a burst's extras, left to the garbage collector
+                created.decrementAndGet(index);
+            }
+        }
+    }
+
+    private int classFor(int capacity) {
+        for (int i = 0; i < sizes.length; i++) {
+            if (capacity <= sizes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer allocate(int index) {
+        allocated.increment();
+        return direct ? ByteBuffer.allocateDirect(sizes[index]) : ByteBuffer.allocate(sizes[index]);
+    }
+
+    /** Size of the largest class. */
+    public int getBufferSize() { return sizes[sizes.length - 1]; }
+
+    public int getFreeCount() {
+        int count = 0;
+        for (BlockingQueue<ByteBuffer> queue : free) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    public long getAllocatedCount() { return allocated.sum(); }
+}
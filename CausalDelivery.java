@@ -0,0 +1,337 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Causal-order delivery per conversation (a room, or the private chat with one peer).
+ *
+ * Each conversation keeps a vector clock of how many messages from every participant
+ * have been delivered. Sending ticks this node's own entry; a received message is
+ * delivered once it is the next message from its sender and everything its sender had
+ * delivered before sending it has been delivered here too. Until then it waits in a
+ * hold-back buffer.
+ *
+ * Clocks are per conversation rather than per node so a message is never held back by
+ * traffic in a room this node is not part of. Participants missing from this node's
+ * clock (because it joined late, or restarted) start from where the first stamp received
+ * in the conversation, or any full stamp after it, says they were. Senders stamp a full
+ * clock whenever the room's membership changed since their previous message, so a new
+ * member gets one on the first message it is sent. The buffer is bounded: a message held longer than the maximum wait, or pushed out by the size
+ * limit, is delivered anyway and the gap it skips is given up on. Messages that turn up
+ * after such a gap, or from peers without clocks, are delivered on arrival rather than
+ * dropped.
+ *
+ * Stamps are deltas: only the entries that changed since this node's previous message
+ * in the conversation, with a full clock on the first message and every
+ * {@code fullClockEvery} after that. The unchanged entries never need checking: a
+ * message is only delivered after the sender's previous one, and that one's clock was
+ * merged here when it was delivered. Checking and merging a stamp therefore costs the
+ * size of the delta, not of the conversation. Entries of participants who are no longer
+ * members are dropped with {@link #retainParticipants}.
+ */
+public class CausalDelivery {
+    private static final Log LOG = Log.get("CausalDelivery");
+
+    private final String selfId;
+    private final int maxHeldPerConversation;
+    private final long maxWaitMillis;
+    private final int fullClockEvery;
+    private final Consumer<Message> deliver;
+    private final Map<String, Conversation> conversations = new ConcurrentHashMap<>();
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder heldTotal = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder holdMillisTotal = new LongAdder();
+    private final AtomicLong holdMillisMax = new AtomicLong();
+    private final LongAdder forced = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder deltasSent = new LongAdder();
+    private final LongAdder fullSent = new LongAdder();
+
+    private static final class Held {
+        final Message message;
+        final long receivedAt;
+        final VectorClock stamp;
+
+        Held(Message message, long receivedAt, VectorClock stamp) {
+            this.message = message;
+            this.receivedAt = receivedAt;
+            this.stamp = stamp;
+        }
+    }
+
+    private static final class Conversation {
+        final VectorClock clock = new VectorClock();
+        boolean seeded;
+        // the sender's epoch at the previous stamp; a change forces a full clock
+        long stampEpoch;
+        // in arrival order, so the oldest is forced out first
+        final List<Held> held = new ArrayList<>();
+        // participants pruned from the clock; their entries in stamps are not waited for
+        final Set<String> departed = new HashSet<>();
+        VectorClock lastSent;
+        int sentSinceFull;
+    }
+
+    public CausalDelivery(String selfId, int maxHeldPerConversation, long maxWaitMillis, Consumer<Message> deliver) {
+        this(selfId, maxHeldPerConversation, maxWaitMillis, 32, deliver);
+    }
+
+    /** @param fullClockEvery how often a full clock is sent in place of a delta, in messages */
+    public CausalDelivery(String selfId, int maxHeldPerConversation, long maxWaitMillis, int fullClockEvery,
+                          Consumer<Message> deliver) {
+        this.selfId = selfId;
+        this.maxHeldPerConversation = maxHeldPerConversation;
+        this.maxWaitMillis = maxWaitMillis;
+        this.fullClockEvery = Math.max(1, fullClockEvery);
+        this.deliver = deliver;
+    }
+
+    private Conversation conversation(String conversationId) {
+        return conversations.computeIfAbsent(conversationId, id -> new Conversation());
+    }
+
+    public VectorClock stamp(String conversationId) {
+        return stamp(conversationId, 0);
+    }
+
+    /**
+     * Ticks this node's entry for a message it is about to send and returns the clock to
+     * stamp on it: the full clock, or the entries changed since the previous stamp.
+     *
+     * @param epoch the room's membership version; when it differs from the previous
+     *              stamp's, members added since then may be missing entries, so the
+     *              full clock is sent
+     */
+    public VectorClock stamp(String conversationId, long epoch) {
+        Conversation conversation = conversation(conversationId);
+        synchronized (conversation) {
+            conversation.clock.increment(selfId);
+            VectorClock stamp;
+            if (conversation.lastSent == null || epoch != conversation.stampEpoch
+                    || ++conversation.sentSinceFull >= fullClockEvery) {
+                conversation.sentSinceFull = 0;
+                stamp = conversation.clock.copy();
+                fullSent.increment();
+            } else {
+                stamp = conversation.clock.diff(conversation.lastSent);
+                deltasSent.increment();
+            }
+            conversation.lastSent = conversation.clock.copy();
+            conversation.stampEpoch = epoch;
+            return stamp;
+        }
+    }
+
+    public void receive(String conversationId, Message message) {
+        Conversation conversation = conversation(conversationId);
+        String senderId = message.getSenderId();
+        Map<String, Integer> vectorClock = message.getVectorClock();
+        VectorClock stamp = vectorClock == null || vectorClock.isEmpty() ? null : VectorClock.from(vectorClock);
+        int senderCount = stamp == null ? 0 : stamp.getCount(senderId);
+        synchronized (conversation) {
+            if (senderCount <= 0) {
+                // sender does not keep causal clocks
+                deliver(message);
+                return;
+            }
+            VectorClock clock = conversation.clock;
+            if (conversation.departed.remove(senderId) && !clock.contains(senderId)) {
+                // back after being pruned; pick up from here
+                clock.set(senderId, senderCount - 1);
+            }
+            adoptBaseline(conversation, senderId, stamp);
+            if (deliverable(conversation, senderId, stamp)) {
+                deliver(clock, stamp, message);
+                releaseDeliverable(conversation, System.currentTimeMillis());
+            } else if (senderCount <= clock.getCount(senderId)) {
+                // behind a gap we already gave up on, or a redelivery; better late than never
+                late.increment();
+                deliver(message);
+            } else {
+                conversation.held.add(new Held(message, System.currentTimeMillis(), stamp));
+                heldTotal.increment();
+                if (conversation.held.size() > maxHeldPerConversation) {
+                    forceOldest(conversation, System.currentTimeMillis());
+                }
+            }
+        }
+    }
+
+    private void adoptBaseline(Conversation conversation, String senderId, VectorClock stamp) {
+        VectorClock clock = conversation.clock;
+        // after the first stamp only full clocks fill gaps; a new member gets one on the
+        // first message sent to it
+        boolean baseline = !conversation.seeded || !stamp.isDelta();
+        for (int i = 0; i < stamp.entryCount(); i++) {
+            String id = stamp.nodeIdAt(i);
+            int count = stamp.countAt(i);
+            if (id.equals(selfId)) {
+                // we sent these, even if a restart made us forget
+                if (count > clock.getCount(id)) {
+                    clock.set(id, count);
+                }
+            } else if (baseline && !clock.contains(id) && !conversation.departed.contains(id)) {
+                // start from where the message says everyone was, except the sender's own
+                // message which is still to be delivered
+                clock.set(id, id.equals(senderId) ? count - 1 : count);
+            }
+        }
+        conversation.seeded = true;
+    }
+
+    private static boolean deliverable(Conversation conversation, String senderId, VectorClock stamp) {
+        VectorClock clock = conversation.clock;
+        for (int i = 0; i < stamp.entryCount(); i++) {
+            String id = stamp.nodeIdAt(i);
+            int count = stamp.countAt(i);
+            if (id.equals(senderId)) {
+                if (count != clock.getCount(id) + 1) {
+                    return false;
+                }
+            } else if (count > clock.getCount(id) && !conversation.departed.contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deliver(VectorClock clock, VectorClock stamp, Message message) {
+        clock.mergeMax(stamp);
+        deliver(message);
+    }
+
+    private void deliver(Message message) {
+        delivered.increment();
+        try {
+            deliver.accept(message);
+        } catch (RuntimeException e) {
+            LOG.warn("Delivery of {} failed", message.getId(), e);
+        }
+    }
+
+    private void releaseDeliverable(Conversation conversation, long now) {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            Iterator<Held> iterator = conversation.held.iterator();
+            while (iterator.hasNext()) {
+                Held held = iterator.next();
+                String senderId = held.message.getSenderId();
+                if (deliverable(conversation, senderId, held.stamp)) {
+                    iterator.remove();
+                    recordHold(now - held.receivedAt);
+                    deliver(conversation.clock, held.stamp, held.message);
+                    progress = true;
+                } else if (held.stamp.getCount(senderId) <= conversation.clock.getCount(senderId)) {
+                    // overtaken by a forced delivery
+                    iterator.remove();
+                    recordHold(now - held.receivedAt);
+                    late.increment();
+                    deliver(held.message);
+                }
+            }
+        }
+    }
+
+    private void forceOldest(Conversation conversation, long now) {
+        Held oldest = conversation.held.remove(0);
+        forced.increment();
+        recordHold(now - oldest.receivedAt);
+        // skip whatever it was waiting for
+        deliver(conversation.clock, oldest.stamp, oldest.message);
+        releaseDeliverable(conversation, now);
+    }
+
+    private void recordHold(long millis) {
+        released.increment();
+        holdMillisTotal.add(millis);
+        holdMillisMax.accumulateAndGet(millis, Math::max);
+    }
+
+    /** Delivers messages that have waited longer than the maximum; call periodically. */
+    public void expire(long now) {
+        for (Conversation conversation : conversations.values()) {
+            synchronized (conversation) {
+                while (!conversation.held.isEmpty()
+                        && now - conversation.held.get(0).receivedAt >= maxWaitMillis) {
+                    forceOldest(conversation, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops clock entries of everyone outside the given participants, so a room's clock
+     * stays the size of its membership. Their entries in incoming stamps are no longer
+     * waited for; if one of them sends again they are picked up from that message.
+     */
+    public void retainParticipants(String conversationId, Collection<String> participants) {
+        Conversation conversation = conversations.get(conversationId);
+        if (conversation == null) {
+            return;
+        }
+        Set<String> keep = new HashSet<>(participants);
+        keep.add(selfId);
+        synchronized (conversation) {
+            VectorClock clock = conversation.clock;
+            for (int i = 0; i < clock.entryCount(); i++) {
+                if (!keep.contains(clock.nodeIdAt(i))) {
+                    conversation.departed.add(clock.nodeIdAt(i));
+                }
+            }
+            conversation.departed.removeAll(keep);
+            clock.retain(keep);
+            if (conversation.lastSent != null) {
+                conversation.lastSent.retain(keep);
+            }
+            releaseDeliverable(conversation, System.currentTimeMillis());
+        }
+    }
+
+    /** Messages currently waiting for their causal dependencies, across all conversations. */
+    public int getHeldCount() {
+        int count = 0;
+        for (Conversation conversation : conversations.values()) {
+            synchronized (conversation) {
+                count += conversation.held.size();
+            }
+        }
+        return count;
+    }
+
+    public long getDeliveredCount() { return delivered.sum(); }
+    /** Messages that had to wait in the buffer at all. */
+    public long getHeldTotal() { return heldTotal.sum(); }
+    /** Messages delivered before their dependencies because of the time or size limit. */
+    public long getForcedCount() { return forced.sum(); }
+    /** Messages that arrived after a gap was given up on and were delivered out of order. */
+    public long getLateCount() { return late.sum(); }
+    public long getMaxHoldMillis() { return holdMillisMax.get(); }
+    /** Stamps sent as deltas rather than full clocks. */
+    public long getDeltaStampCount() { return deltasSent.sum(); }
+    public long getFullStampCount() { return fullSent.sum(); }
+
+    /** Average time held-back messages spent in the buffer before release. */
+    public double getAverageHoldMillis() {
+        long count = released.sum();
+        return count == 0 ? 0.0 : (double) holdMillisTotal.sum() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "causal[held=" + getHeldCount() + ", delivered=" + getDeliveredCount()
+            + ", heldTotal=" + getHeldTotal() + String.format(", avgHoldMs=%.1f", getAverageHoldMillis())
+            + ", maxHoldMs=" + getMaxHoldMillis() + ", forced=" + getForcedCount() + ", late=" + getLateCount()
+            + ", deltaStamps=" + getDeltaStampCount() + ", fullStamps=" + getFullStampCount() + "]";
+    }
+}
@@ -1,10 +1,20 @@
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeSet;
 
-public class ChatConsole {
+/** Text client for a node; needs no display, so it also drives headless nodes. */
+public class ChatConsole implements NodeListener {
     private final Node node;
     private final Scanner scanner;
     private boolean running = true;
     private boolean isAuthenticated = false;
+    // chat and cursor of the last /history page, for /more
+    private String historyChat;
+    private String historyId;
+    private long historyCursor;
 
     public ChatConsole(Node node) {
         this.node = node;
@@ -32,7 +42,30 @@ public class ChatConsole {
 
     public void start() {
         printHelp();
-        new Thread(this::inputLoop).start();
+        node.addListener(this);
+        node.getServices().start("ChatConsole", this::inputLoop);
+    }
+
+    @Override
+    public void messageReceived(Message message) {
+        String chatId = node.getHistory().chatIdOf(message);
+        String where = message.getType() == MessageType.GROUP_CHAT ? "[" + chatId + "] " : "";
+        System.out.printf("%s%s: %s%n", where, author(message), message.getContent());
+    }
+
+    private static String author(Message message) {
+        String relayedBy = message.getRelayedBy();
+        return relayedBy == null ? message.getSenderId() : message.getSenderId() + " (via " + relayedBy + ")";
+    }
+
+    @Override
+    public void notice(String text) {
+        System.out.println("* " + text);
+    }
+
+    @Override
+    public void peerStatusChanged(String peerId, NodeStatus status) {
+        System.out.println("* " + peerId + " is " + status);
     }
 
     private void inputLoop() {
@@ -59,17 +92,91 @@ public class ChatConsole {
                 
             case "/msg":
                 if (parts.length < 2) {
-                    System.out.println("Usage: /msg <userId> <message>");
+                    System.out.println("Usage: /msg <userId|groupId> <message>");
                     return;
                 }
                 String[] msgParts = parts[1].split("\\s+", 2);
                 if (msgParts.length < 2) {
-                    System.out.println("Usage: /msg <userId> <message>");
+                    System.out.println("Usage: /msg <userId|groupId> <message>");
                     return;
                 }
                 node.sendMessage(msgParts[1], msgParts[0]);
                 break;
+
+            case "/peer":
+                String[] peerParts = parts.length < 2 ? new String[0] : parts[1].split("\\s+");
+                if (peerParts.length < 2) {
+                    System.out.println("Usage: /peer <userId> <port>");
+                    return;
+                }
+                node.addPeer(peerParts[0], Integer.parseInt(peerParts[1]));
+                System.out.println("Peer " + peerParts[0] + " added.");
+                break;
+
+            case "/peers":
+                for (Map.Entry<String, PeerInfo> peer : node.getPeers().entrySet()) {
+                    System.out.println(peer.getKey() + " (" + peer.getValue().getStatus() + ")");
+                }
+                break;
+
+            case "/create":
+                if (parts.length < 2) {
+                    System.out.println("Usage: /create <groupId>");
+                    return;
+                }
+                node.createGroup(parts[1]);
+                System.out.println("Group " + parts[1] + " created.");
+                break;
+
+            case "/add":
+                String[] addParts = parts.length < 2 ? new String[0] : parts[1].split("\\s+");
+                if (addParts.length < 2) {
+                    System.out.println("Usage: /add <groupId> <userId>");
+                    return;
+                }
+                // the node reports the addition
+                node.addMemberToGroup(addParts[0], addParts[1]);
+                break;
+
+            case "/groups":
+                if (node.getChatRooms().isEmpty()) {
+                    System.out.println("No groups.");
+                }
+                for (ChatRoom room : node.getChatRooms().values()) {
+                    System.out.println(room.getRoomId() + " (" + room.getMembers().size() + " members)");
+                }
+                break;
+
+            case "/members":
+                ChatRoom room = parts.length < 2 ? null : node.getChatRooms().get(parts[1]);
+                if (room == null) {
+                    System.out.println("Usage: /members <groupId>");
+                    return;
+                }
+                System.out.println(String.join(", ", new TreeSet<>(room.getMembers())));
+                break;
                 
+            case "/history":
+                if (parts.length < 2) {
+                    System.out.println("Usage: /history <userId|groupId> [count]");
+                    return;
+                }
+                String[] historyParts = parts[1].split("\\s+");
+                historyChat = historyParts[0];
+                historyId = node.getChatRooms().containsKey(historyChat) ? historyChat
+                    : HistoryStore.privateChatId(historyChat);
+                historyCursor = Long.MAX_VALUE;
+                printHistory(historyParts.length > 1 ? Integer.parseInt(historyParts[1]) : 20);
+                break;
+
+            case "/more":
+                if (historyChat == null || historyCursor == 0) {
+                    System.out.println("No more history. Use /history <userId|groupId> first.");
+                    return;
+                }
+                printHistory(20);
+                break;
+
             case "/logout":
                 isAuthenticated = false;
                 System.out.println("Logged out successfully.");
@@ -88,9 +195,33 @@ public class ChatConsole {
         }
     }
 
+    private void printHistory(int count) throws IOException {
+        HistoryStore.Page page = node.getHistory().before(historyId, historyCursor, count);
+        if (page.getMessages().isEmpty()) {
+            System.out.println("No messages with " + historyChat + ".");
+        }
+        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+        for (Message message : page.getMessages()) {
+            System.out.printf("[%s] %s: %s%n", sdf.format(new Date(message.getTimestamp())),
+                author(message), message.getContent());
+        }
+        historyCursor = page.getCursor();
+        if (page.hasMore()) {
+            System.out.println("(/more for older messages)");
+        }
+    }
+
     private void printHelp() {
         System.out.println("\nAvailable commands:");
-        System.out.println("/msg <userId> <message>   - Send private message");
+        System.out.println("/msg <id> <message>       - Send a message to a user or group");
+        System.out.println("/peer <userId> <port>     - Add a peer");
+        System.out.println("/peers                    - List peers and their status");
+        System.out.println("/create <groupId>         - Create a group");
+        System.out.println("/add <groupId> <userId>   - Add a member to a group");
+        System.out.println("/groups                   - List groups");
+        System.out.println("/members <groupId>        - List the members of a group");
+        System.out.println("/history <id> [count]     - Show recent messages with a user or group");
+        System.out.println("/more                     - Show older messages");
         System.out.println("/logout                   - Logout from the system");
         System.out.println("/help                     - Show available commands");
         System.out.println("/exit                     - Exit application");
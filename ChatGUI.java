@@ -2,27 +2,48 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.text.SimpleDateFormat;
-import java.util.List;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Date;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class ChatGUI extends JFrame {
+    private static final Log LOG = Log.get("ChatGUI");
+
     private final Node node;
-    private JTextArea chatArea;
+    private MessageListModel messageModel;
+    private JList<Message> messageList;
     private JTextField messageField;
     private DefaultListModel<String> peerListModel;
     private DefaultListModel<String> groupListModel;
     private JList<String> peerList;
     private JList<String> groupList;
     private String currentChat = null;
-    private Map<String, List<String>> messageHistory = new HashMap<>();
+    // the current chat's ID in the history store
+    private String currentHistory = null;
     private JLabel currentChatLabel;
+    private JScrollPane chatScrollPane;
+    // History is read from the node a page at a time; older pages load when scrolled to the top
+    private static final int HISTORY_PAGE_SIZE = 100;
+    private long historyCursor;
+    private boolean historyHasMore;
+    // set when older pages pushed the newest rows out of the view
+    private boolean newestDropped;
+    // The view holds at most this many rows
+    private static final int MAX_ROWS = Integer.getInteger("chat.gui.maxRows", 2000);
+    // The node's events are applied in frames; see UiEventBus
+    private static final long FRAME_INTERVAL = Long.getLong("chat.ui.frameMs", 50);
+    private static final int MAX_PENDING = Integer.getInteger("chat.ui.maxPending", 2000);
 
     public ChatGUI(Node node) {
         this.node = node;
         initUI();
+        // the node's events arrive here in batches, on the event thread
+        UiEventBus events = new UiEventBus(TimerWheel.shared(), FRAME_INTERVAL, MAX_PENDING);
+        events.subscribe(this::onUiEvents, SwingUtilities::invokeLater);
+        node.addListener(events);
     }
 
     private void initUI() {
@@ -39,11 +60,27 @@ public class ChatGUI extends JFrame {
         currentChatLabel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         mainPanel.add(currentChatLabel, BorderLayout.NORTH);
 
-        // Chat Area
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setFont(new Font("Arial", Font.PLAIN, 14));
-        JScrollPane scrollPane = new JScrollPane(chatArea);
+        // Chat Area: only the visible rows are rendered, one line per message
+        messageModel = new MessageListModel(MAX_ROWS);
+        messageList = new JList<>(messageModel);
+        Font chatFont = new Font("Arial", Font.PLAIN, 14);
+        messageList.setFont(chatFont);
+        messageList.setCellRenderer(new MessageRenderer());
+        // fixed sizes, so the list never measures every row
+        messageList.setFixedCellHeight(messageList.getFontMetrics(chatFont).getHeight() + 4);
+        messageList.setFixedCellWidth(1);
+        JScrollPane scrollPane = new JScrollPane(messageList);
+        chatScrollPane = scrollPane;
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValueIsAdjusting()) {
+                return;
+            }
+            if (e.getValue() == 0 && historyHasMore) {
+                loadOlderHistory();
+            } else if (newestDropped && isScrolledToBottom()) {
+                showLatest();
+            }
+        });
 
         // Input Panel
         JPanel inputPanel = new JPanel(new BorderLayout());
@@ -135,16 +172,86 @@ public class ChatGUI extends JFrame {
 
     private void switchChat(String chatId, boolean isGroup) {
         currentChat = chatId;
-        chatArea.setText("");
+        currentHistory = isGroup ? chatId : HistoryStore.privateChatId(chatId);
         currentChatLabel.setText(isGroup ? "Group Chat: " + chatId : "Chat with: " + chatId);
-        
-        List<String> messages = messageHistory.get(chatId);
-        if (messages != null) {
-            for (String msg : messages) {
-                chatArea.append(msg + "\n");
+        showLatest();
+        messageField.requestFocus();
+    }
+
+    /** Shows the newest page of the current chat, scrolled to the bottom. */
+    private void showLatest() {
+        String chatId = currentHistory;
+        // only the newest page is read; a page is a few index lookups and mapped reads
+        historyHasMore = false;
+        newestDropped = false;
+        try {
+            HistoryStore.Page page = node.getHistory().latest(chatId, HISTORY_PAGE_SIZE);
+            messageModel.setAll(page.getMessages());
+            historyCursor = page.getCursor();
+            scrollToBottom();
+            // once the view has scrolled to the newest message
+            SwingUtilities.invokeLater(() -> historyHasMore = page.hasMore() && chatId.equals(currentHistory));
+        } catch (IOException e) {
+            messageModel.clear();
+            LOG.warn("Could not load history for {}", chatId, e);
+        }
+    }
+
+    /** Prepends the next older page of the current chat, keeping the view where it was. */
+    private void loadOlderHistory() {
+        if (currentChat == null) {
+            return;
+        }
+        historyHasMore = false;
+        try {
+            HistoryStore.Page page = node.getHistory().before(currentHistory, historyCursor, HISTORY_PAGE_SIZE);
+            JScrollBar scrollBar = chatScrollPane.getVerticalScrollBar();
+            int added = page.getMessages().size();
+            if (messageModel.prepend(page.getMessages()) > 0) {
+                newestDropped = true;
             }
+            historyCursor = page.getCursor();
+            SwingUtilities.invokeLater(() -> {
+                scrollBar.setValue(scrollBar.getValue() + added * messageList.getFixedCellHeight());
+                historyHasMore = page.hasMore();
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not load history for {}", currentChat, e);
+        }
+    }
+
+    private boolean isScrolledToBottom() {
+        JScrollBar scrollBar = chatScrollPane.getVerticalScrollBar();
+        return scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum();
+    }
+
+    private void scrollToBottom() {
+        if (messageModel.getSize() > 0) {
+            messageList.ensureIndexIsVisible(messageModel.getSize() - 1);
+        }
+    }
+
+    /** One line per message; the full text is in the tooltip. Used on the EDT only. */
+    private class MessageRenderer extends DefaultListCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+        private final Date date = new Date();
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            Message message = (Message) value;
+            date.setTime(message.getTimestamp());
+            String sender = message.getSenderId().equals(node.getNodeId()) ? "You" : message.getSenderId();
+            if (message.getRelayedBy() != null) {
+                sender += " (via " + message.getRelayedBy() + ")";
+            }
+            String text = "[" + timeFormat.format(date) + "] " + sender + ": " + message.getContent();
+            super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            setToolTipText(message.getContent());
+            return this;
         }
-        messageField.requestFocus();
     }
 
     private void sendMessage() {
@@ -164,21 +271,48 @@ public class ChatGUI extends JFrame {
         }
     }
 
-    public void appendMessage(String sender, String message, String recipient) {
-        SwingUtilities.invokeLater(() -> {
-            SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-            String timestamp = sdf.format(new Date());
-            String formattedMessage = String.format("[%s] %s: %s", timestamp, sender, message);
-
-            messageHistory.computeIfAbsent(recipient, k -> new ArrayList<>()).add(formattedMessage);
+    /** Applies one frame of the node's events. */
+    private void onUiEvents(UiEventBus.Batch events) {
+        if (events.isGroupsChanged()) {
+            updateGroupList();
+        }
+        appendMessages(events.getMessages());
+        if (events.isMessagesDropped() && currentChat != null && !newestDropped) {
+            // the bus shed older messages in a storm; page them in from history instead
+            historyCursor = Math.max(0, node.getHistory().count(currentHistory) - messageModel.getSize());
+            historyHasMore = historyCursor > 0;
+        }
+        if (!events.getNotices().isEmpty()) {
+            showSystemMessage(String.join("\n", events.getNotices()));
+        }
+    }
 
-            if (currentChat != null && (currentChat.equals(recipient) || currentChat.equals(sender))) {
-                chatArea.append(formattedMessage + "\n");
-                chatArea.setCaretPosition(chatArea.getDocument().getLength());
+    private void appendMessages(List<Message> messages) {
+        List<Message> batch = new ArrayList<>();
+        for (Message message : messages) {
+            // while older pages are shown the newest rows come back from history instead
+            if (!newestDropped && currentChat != null
+                    && currentHistory.equals(node.getHistory().chatIdOf(message))) {
+                batch.add(message);
             }
-            
-            System.out.println("DEBUG: Appending message to GUI - " + formattedMessage);
-        });
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        boolean follow = isScrolledToBottom();
+        int dropped = messageModel.append(batch);
+        if (dropped > 0) {
+            // the dropped rows can be paged back in from history
+            historyCursor += dropped;
+            historyHasMore = true;
+        }
+        if (follow) {
+            scrollToBottom();
+        } else if (dropped > 0) {
+            // keep the rows being read in place as older ones leave the top
+            JScrollBar scrollBar = chatScrollPane.getVerticalScrollBar();
+            scrollBar.setValue(scrollBar.getValue() - dropped * messageList.getFixedCellHeight());
+        }
     }
 
     private void addPeer() {
@@ -218,17 +352,23 @@ public class ChatGUI extends JFrame {
         String newMember = JOptionPane.showInputDialog(this, "Enter New Member ID:");
         if (newMember != null && !newMember.trim().isEmpty()) {
             try {
+                // the node reports the addition
                 node.addMemberToGroup(selectedGroup, newMember);
-                showSystemMessage("User " + newMember + " added to " + selectedGroup);
             } catch (Exception e) {
                 showSystemMessage("Error adding member: " + e.getMessage());
             }
         }
     }
 
-    public void updateGroupList() {
-        groupListModel.clear();
-        for (String group : node.getChatRooms().keySet()) {
+    /** Brings the group list in line with the node's rooms, touching only what changed. */
+    private void updateGroupList() {
+        Set<String> groups = new TreeSet<>(node.getChatRooms().keySet());
+        for (int i = groupListModel.size() - 1; i >= 0; i--) {
+            if (!groups.remove(groupListModel.get(i))) {
+                groupListModel.remove(i);
+            }
+        }
+        for (String group : groups) {
             groupListModel.addElement(group);
         }
     }
@@ -1,83 +1,130 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
 
+/**
+ * A group chat. Members and allowed users are published as an immutable, versioned
+ * {@link Membership} that every change replaces under the room's lock, so readers such
+ * as fan-out take {@link #getMembership()} once and work from it without locking or
+ * copying.
+ */
 public class ChatRoom implements Serializable {
+    private static final Log LOG = Log.get("ChatRoom");
+
     private final String roomId;
     private final String name;
-    private final Set<String> members;
-    private final Set<String> allowedUsers;  // New field for restricted access
+    // handles are only meaningful inside this process; serialized as node IDs
+    private transient volatile Membership membership = Membership.EMPTY;
     private final String adminId;
-    private final List<Message> messageHistory;
     private final boolean isRestricted;  // New field to indicate if group is restricted
+    private volatile DisseminationMode disseminationMode = DisseminationMode.DIRECT;
     
     public ChatRoom(String roomId, String name, String adminId, boolean isRestricted) {
         this.roomId = roomId;
         this.name = name;
         this.adminId = adminId;
         this.isRestricted = isRestricted;
-        this.members = Collections.synchronizedSet(new HashSet<>());
-        this.allowedUsers = Collections.synchronizedSet(new HashSet<>());
-        this.messageHistory = Collections.synchronizedList(new ArrayList<>());
-        this.members.add(adminId);
-        if (isRestricted) {
-            this.allowedUsers.add(adminId);
-        }
-        System.out.println("Created new " + (isRestricted ? "restricted " : "") + "group: " + name);
+        int admin = NodeIds.handle(adminId);
+        Membership initial = Membership.EMPTY.withMember(admin);
+        this.membership = isRestricted ? initial.withAllowedUser(admin) : initial;
+        LOG.info("Created new {}group: {}", isRestricted ? "restricted " : "", name);
     }
     
-    public void addAllowedUser(String userId) {
+    public synchronized void addAllowedUser(String userId) {
         if (isRestricted) {
-            allowedUsers.add(userId);
-            System.out.println("Added " + userId + " to allowed users in group " + name);
+            membership = membership.withAllowedUser(NodeIds.handle(userId));
+            LOG.info("Added {} to allowed users in group {}", userId, name);
         }
     }
     
     public boolean canJoin(String userId) {
-        return !isRestricted || allowedUsers.contains(userId);
+        return !isRestricted || membership.isAllowed(userId);
     }
     
     public void addMember(String nodeId) {
+        addMember(nodeId, false);
+    }
+
+    /**
+     * Adds a member if they may join. {@code advance} marks a change made on the admin's
+     * node, which moves the version on; see {@link Membership}.
+     */
+    public synchronized void addMember(String nodeId, boolean advance) {
         if (nodeId != null && !nodeId.trim().isEmpty() && canJoin(nodeId)) {
-            boolean added = members.add(nodeId);
-            if (added) {
-                System.out.println("Added member " + nodeId + " to group " + name);
+            Membership current = membership;
+            membership = current.withMember(NodeIds.handle(nodeId));
+            if (membership != current) {
+                if (advance) {
+                    membership = membership.withVersion(current.getVersion() + 1);
+                }
+                LOG.info("Added member {} to group {}", nodeId, name);
             }
         } else {
-            System.out.println("User " + nodeId + " not allowed to join restricted group " + name);
+            LOG.info("User {} not allowed to join restricted group {}", nodeId, name);
         }
     }
-    
-    public void removeMember(String nodeId) {
-        if (!nodeId.equals(adminId)) {
-            members.remove(nodeId);
-            if (isRestricted) {
-                allowedUsers.remove(nodeId);
-            }
-            System.out.println("Removed member " + nodeId + " from group " + name);
-        }
+
+    /** Allows the user in if the room is restricted and adds them, as a single change. */
+    public synchronized void invite(String userId, boolean advance) {
+        addAllowedUser(userId);
+        addMember(userId, advance);
     }
-    
-    public void addMessage(Message message) {
-        if (members.contains(message.getSenderId())) {
-            messageHistory.add(message);
+
+    /**
+     * Replaces the members with the admin's list if its version is newer than this
+     * node's, and returns whether it was.
+     */
+    public synchronized boolean adopt(long version, Collection<String> members) {
+        if (version <= membership.getVersion()) {
+            return false;
         }
+        membership = membership.withMembers(version, members);
+        LOG.info("Group {} is at the admin's version {} with {} members", name, version, members.size());
+        return true;
     }
     
+    /** The current members and allowed users; later changes publish a new snapshot. */
+    public Membership getMembership() {
+        return membership;
+    }
+
+    /** Member IDs of the current snapshot, unmodifiable. */
     public Set<String> getMembers() {
-        return new HashSet<>(members);
+        return membership.getMembers();
     }
-    
-    public Set<String> getAllowedUsers() {
-        return new HashSet<>(allowedUsers);
+
+    /** Handles of the current members in ascending order. The array is shared: do not modify it. */
+    public int[] getMemberHandles() {
+        return membership.getMemberHandles();
     }
     
-    public List<Message> getMessageHistory() {
-        return new ArrayList<>(messageHistory);
+    public Set<String> getAllowedUsers() {
+        return membership.getAllowedUsers();
     }
     
     public String getRoomId() { return roomId; }
     public String getName() { return name; }
     public String getAdminId() { return adminId; }
     public boolean isRestricted() { return isRestricted; }
-    public boolean isMember(String nodeId) { return members.contains(nodeId); }
-}
\ No newline at end of file
+    public DisseminationMode getDisseminationMode() { return disseminationMode; }
+    public void setDisseminationMode(DisseminationMode mode) { this.disseminationMode = mode; }
+    public boolean isMember(String nodeId) { return membership.isMember(nodeId); }
+    public boolean isMember(int handle) { return membership.isMember(handle); }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeLong(membership.getVersion());
+        out.writeObject(new ArrayList<>(membership.getMembers()));
+        out.writeObject(new ArrayList<>(membership.getAllowedUsers()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        long version = in.readLong();
+        membership = Membership.of(version, (List<String>) in.readObject(), (List<String>) in.readObject());
+    }
+}
+
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Blocking {@link DatagramSocket} transport with one receive thread. Kept as a fallback
+ * for platforms where the NIO transport misbehaves ({@code -Dchat.transport=socket}).
+ * Like {@link NioDatagramTransport}, it receives into the arrays of pooled heap buffers
+ * and hands those over, copying into a buffer of exactly the datagram's size only when
+ * the pool has none left.
+ */
+public class DatagramSocketTransport implements Transport {
+    private static final Log LOG = Log.get("DatagramSocketTransport");
+
+    private static final int MAX_PACKET_SIZE = 65507;
+
+    private final DatagramSocket socket;
+    private final BufferPool pool;
+    private final byte[] receiveBuffer = new byte[MAX_PACKET_SIZE];
+    private volatile boolean running;
+
+    public DatagramSocketTransport(int port, BufferPool pool) throws IOException {
+        this.pool = pool;
+        this.socket = new DatagramSocket(port);
+    }
+
+    @Override
+    public void start(Receiver receiver, ThreadFactory threads) {
+        running = true;
+        Thread thread = threads.newThread(() -> receiveLoop(receiver));
+        thread.setName("MessageListener");
+        thread.start();
+    }
+
+    private void receiveLoop(Receiver receiver) {
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        ByteBuffer buffer = null;
+        while (running) {
+            try {
+                if (buffer == null) {
+                    buffer = pool.tryAcquire(MAX_PACKET_SIZE);
+                }
+                if (buffer != null) {
+                    packet.setData(buffer.array(), buffer.arrayOffset(), MAX_PACKET_SIZE);
+                } else {
+                    packet.setData(receiveBuffer, 0, receiveBuffer.length);
+                }
+                socket.receive(packet);
+                ByteBuffer received;
+                if (buffer != null) {
+                    buffer.clear().limit(packet.getLength());
+                    received = buffer;
+                    buffer = null;
+                } else {
+                    received = ByteBuffer.wrap(Arrays.copyOf(receiveBuffer, packet.getLength()));
+                }
+                receiver.onPacket(received, (InetSocketAddress) packet.getSocketAddress());
+            } catch (IOException e) {
+                if (running) {
+                    LOG.warn("Receive failed", e);
+                }
+            }
+        }
+        pool.release(buffer);
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress target) throws IOException {
+        if (data.hasArray()) {
+            socket.send(new DatagramPacket(data.array(), data.arrayOffset() + data.position(),
+                data.remaining(), target));
+            data.position(data.limit());
+            return;
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        socket.send(new DatagramPacket(bytes, bytes.length, target));
+    }
+
+    @Override
+    public ByteBuffer acquire(int capacity) {
+        return pool.acquire(capacity);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        socket.close();
+    }
+}
@@ -0,0 +1,8 @@
+public enum DisseminationMode {
+    /** The sender sends to every member itself. */
+    DIRECT,
+    /** Members relay along a k-ary tree rooted at the sender. */
+    TREE,
+    /** Members forward to a few random members until the hop limit is reached. */
+    GOSSIP
+}
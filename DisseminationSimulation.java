@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs many in-process nodes on localhost ports, puts them all in one room and compares
+ * group dissemination modes: delivery ratio, fan-out latency and datagrams sent per node.
+ *
+ * Usage: java DisseminationSimulation [nodes] [mode|all] [messages] [basePort]
+ */
+public class DisseminationSimulation {
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        String modeArg = args.length > 1 ? args[1] : "all";
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int basePort = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+
+        List<DisseminationMode> modes = new ArrayList<>();
+        if (modeArg.equalsIgnoreCase("all")) {
+            modes.addAll(Arrays.asList(DisseminationMode.values()));
+        } else {
+            modes.add(DisseminationMode.valueOf(modeArg.toUpperCase()));
+        }
+
+        Node[] nodes = new Node[nodeCount];
+        ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new Node("sim" + i, basePort + i);
+            nodes[i].setDeliveryObserver(message ->
+                latencies.add(System.currentTimeMillis() - message.getTimestamp()));
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            for (int j = 0; j < nodeCount; j++) {
+                if (i != j) {
+                    nodes[i].addPeer("sim" + j, basePort + j);
+                }
+            }
+        }
+
+        String groupId = "simroom";
+        nodes[0].createGroup(groupId);
+        for (int i = 1; i < nodeCount; i++) {
+            nodes[0].addMemberToGroup(groupId, "sim" + i);
+        }
+        Thread.sleep(500);
+        // re-send the complete member list so every member builds the same tree
+        for (int i = 1; i < nodeCount; i++) {
+            nodes[0].addMemberToGroup(groupId, "sim" + i);
+        }
+        Thread.sleep(500);
+
+        List<String> report = new ArrayList<>();
+        for (DisseminationMode mode : modes) {
+            nodes[0].setDisseminationMode(groupId, mode);
+            latencies.clear();
+            long[] sentBefore = new long[nodeCount];
+            long[] forcedBefore = new long[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                sentBefore[i] = nodes[i].getPacketsSent();
+                forcedBefore[i] = nodes[i].getCausalDelivery().getForcedCount();
+            }
+
+            for (int m = 0; m < messages; m++) {
+                nodes[0].sendGroupMessage("simulated message " + m, groupId);
+                Thread.sleep(20);
+            }
+            Thread.sleep(1000);
+            // give retransmissions a chance to fill the gaps causal delivery is waiting on
+            for (int wait = 0; wait < 20 && heldCount(nodes) > 0; wait++) {
+                Thread.sleep(500);
+            }
+
+            long[] sent = new long[nodeCount];
+            long relayMax = 0;
+            long relayTotal = 0;
+            for (int i = 0; i < nodeCount; i++) {
+                sent[i] = nodes[i].getPacketsSent() - sentBefore[i];
+                if (i > 0) {
+                    relayMax = Math.max(relayMax, sent[i]);
+                    relayTotal += sent[i];
+                }
+            }
+            // messages still waiting for a causal predecessor when the run ended
+            long stillHeld = heldCount(nodes);
+            long forced = 0;
+            for (int i = 0; i < nodeCount; i++) {
+                forced += nodes[i].getCausalDelivery().getForcedCount() - forcedBefore[i];
+            }
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            long expected = (long) messages * (nodeCount - 1);
+            report.add(String.format(
+                "%-7s delivered %d/%d  latency ms p50=%d p99=%d max=%d  packets/msg origin=%.1f relay avg=%.2f max=%.1f"
+                    + "  causal held=%d forced=%d",
+                mode, sorted.length, expected, percentile(sorted, 0.50), percentile(sorted, 0.99),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1],
+                (double) sent[0] / messages, (double) relayTotal / messages / Math.max(1, nodeCount - 1),
+                (double) relayMax / messages, stillHeld, forced));
+        }
+
+        for (Node node : nodes) {
+            node.shutdown();
+        }
+        System.out.println();
+        System.out.println("Dissemination with " + nodeCount + " nodes, " + messages + " messages per mode");
+        for (String line : report) {
+            System.out.println(line);
+        }
+        System.exit(0);
+    }
+
+    private static long heldCount(Node[] nodes) {
+        long held = 0;
+        for (Node node : nodes) {
+            held += node.getCausalDelivery().getHeldCount();
+        }
+        return held;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
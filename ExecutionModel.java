@@ -0,0 +1,19 @@
+/**
+ * How a {@link Node} runs its long-lived services and per-peer handlers.
+ */
+public enum ExecutionModel {
+    /** One platform thread per service loop and a handful of dispatch lanes. */
+    PLATFORM,
+    /**
+     * Virtual threads for service loops, dispatch lanes and fan-out tasks. Blocked
+     * handlers no longer tie up an OS thread, so one JVM can host thousands of nodes,
+     * peers and rooms for load tests and relays. Requires Java 21; on older runtimes
+     * {@link ServiceScope} falls back to PLATFORM.
+     */
+    VIRTUAL;
+
+    /** Model selected with {@code -Dchat.execution=platform|virtual}. */
+    public static ExecutionModel configured() {
+        return valueOf(System.getProperty("chat.execution", "platform").toUpperCase());
+    }
+}
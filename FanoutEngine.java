@@ -0,0 +1,226 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Sends one message to many peers. The message is encoded once and sealed once per
+ * crypto mode in use, and the same datagram is then sent to every recipient; large
+ * recipient lists are split into chunks sent in parallel.
+ */
+public class FanoutEngine {
+    /** Delivers one sealed packet to a peer, e.g. through its {@link ReliableChannel}. */
+    public interface PacketSender {
+        void send(PeerInfo peer, ByteBuffer packet) throws Exception;
+    }
+
+    // for sequential sends, which nothing calls off
+    private static final AtomicBoolean NEVER_STOP = new AtomicBoolean();
+
+    private final Transport transport;
+    private final PacketSender sender;
+    private final PacketCrypto crypto;
+    private final ExecutorService executor;
+    private final int parallelThreshold;
+    private final int chunkSize;
+
+    /** Outcome of a fan-out: how many sends succeeded and why the others failed. */
+    public static class Result {
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final Map<String, String> failures = new ConcurrentHashMap<>();
+
+        public void fail(String peerId, String reason) {
+            failures.put(peerId, reason);
+        }
+
+        public int getDeliveredCount() { return delivered.get(); }
+        public Map<String, String> getFailures() { return Collections.unmodifiableMap(failures); }
+        public boolean isComplete() { return failures.isEmpty(); }
+
+        @Override
+        public String toString() {
+            return "delivered=" + delivered.get() + ", failed=" + failures;
+        }
+    }
+
+    public FanoutEngine(Transport transport, PacketCrypto crypto, ExecutorService executor,
+                        int parallelThreshold, int chunkSize) {
+        this(transport, (peer, packet) -> transport.send(packet, peer.getSocketAddress()),
+            crypto, executor, parallelThreshold, chunkSize);
+    }
+
+    public FanoutEngine(Transport transport, PacketSender sender, PacketCrypto crypto, ExecutorService executor,
+                        int parallelThreshold, int chunkSize) {
+        this.transport = transport;
+        this.sender = sender;
+        this.crypto = crypto;
+        this.executor = executor;
+        this.parallelThreshold = parallelThreshold;
+        this.chunkSize = chunkSize;
+    }
+
+    public Result send(Message message, byte frameFlags, List<PeerInfo> recipients) {
+        Result result = new Result();
+        if (recipients.isEmpty()) {
+            return result;
+        }
+        Map<PacketCrypto.Mode, ByteBuffer> sealed = new EnumMap<>(PacketCrypto.Mode.class);
+        // 1 for each recipient the packet was handed to, so a failure part-way is reported per peer
+        AtomicIntegerArray sent = new AtomicIntegerArray(recipients.size());
+        try {
+            // legacy peers cannot unpack frames
+            ByteBuffer frame = MessageCodec.LEGACY_ENCODE ? MessageCodec.encodeReusable(message)
+                : MessageCodec.encodeFrameReusable(message, frameFlags);
+            // read once: enableGcm may switch a peer's mode while this fan-out is running
+            PacketCrypto.Mode[] modes = new PacketCrypto.Mode[recipients.size()];
+            for (int i = 0; i < modes.length; i++) {
+                PacketCrypto.Mode mode = recipients.get(i).getCryptoMode();
+                modes[i] = mode;
+                if (!sealed.containsKey(mode)) {
+                    ByteBuffer packet = transport.acquire(PacketCrypto.maxSealedSize(frame.remaining()));
+                    sealed.put(mode, packet);
+                    crypto.seal(frame.duplicate(), packet, mode);
+                    packet.flip();
+                }
+            }
+
+            if (recipients.size() < parallelThreshold) {
+                sendAll(recipients, modes, 0, recipients.size(), sealed, sent, result, NEVER_STOP);
+            } else {
+                sendChunks(recipients, modes, sealed, sent, result);
+            }
+        } catch (Exception e) {
+            failRemaining(recipients, sent, result, String.valueOf(e.getMessage()));
+        } finally {
+            for (ByteBuffer packet : sealed.values()) {
+                transport.release(packet);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends the recipients in chunks on the executor and returns only once no chunk can
+     * touch the sealed packets any more, since they go back to the pool when the fan-out
+     * ends. If interrupted, chunks that have not started are called off and running ones
+     * stop after their current send.
+     */
+    private void sendChunks(List<PeerInfo> recipients, PacketCrypto.Mode[] modes,
+                            Map<PacketCrypto.Mode, ByteBuffer> sealed, AtomicIntegerArray sent, Result result) {
+        int count = (recipients.size() + chunkSize - 1) / chunkSize;
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Chunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < recipients.size(); i += chunkSize) {
+            int from = i;
+            int to = Math.min(i + chunkSize, recipients.size());
+            chunks.add(new Chunk(() -> sendAll(recipients, modes, from, to, sealed, sent, result, stop), done));
+        }
+        String reason = null;
+        try {
+            for (Chunk chunk : chunks) {
+                executor.execute(chunk);
+            }
+            done.await();
+        } catch (RejectedExecutionException e) {
+            reason = "rejected";
+        } catch (InterruptedException e) {
+            reason = "interrupted";
+        }
+        if (reason != null) {
+            stop.set(true);
+            for (Chunk chunk : chunks) {
+                chunk.cancel();
+            }
+            awaitUninterruptibly(done);
+            if (reason.equals("interrupted")) {
+                Thread.currentThread().interrupt();
+            }
+            failRemaining(recipients, sent, result, reason);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** A slice of the recipients, run once by a worker unless called off before it starts. */
+    private static final class Chunk implements Runnable {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+
+        private final Runnable task;
+        private final CountDownLatch done;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        Chunk(Runnable task, CountDownLatch done) {
+            this.task = task;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+            try {
+                task.run();
+            } finally {
+                state.set(DONE);
+                done.countDown();
+            }
+        }
+
+        /** Keeps the chunk from starting; one already running still counts down when it ends. */
+        void cancel() {
+            if (state.compareAndSet(QUEUED, DONE)) {
+                done.countDown();
+            }
+        }
+    }
+
+    private void sendAll(List<PeerInfo> peers, PacketCrypto.Mode[] modes, int from, int to,
+                         Map<PacketCrypto.Mode, ByteBuffer> sealed, AtomicIntegerArray sent, Result result,
+                         AtomicBoolean stop) {
+        for (int i = from; i < to && !stop.get(); i++) {
+            PeerInfo peer = peers.get(i);
+            try {
+                sender.send(peer, sealed.get(modes[i]).duplicate());
+                sent.set(i, 1);
+                result.delivered.incrementAndGet();
+            } catch (Exception e) {
+                result.fail(peer.getPeerId(), String.valueOf(e.getMessage()));
+            }
+        }
+    }
+
+    /** Fails every recipient the packet was not handed to; those that already failed keep their reason. */
+    private void failRemaining(List<PeerInfo> recipients, AtomicIntegerArray sent, Result result, String reason) {
+        for (int i = 0; i < recipients.size(); i++) {
+            if (sent.get(i) == 0) {
+                result.failures.putIfAbsent(recipients.get(i).getPeerId(), reason);
+            }
+        }
+    }
+}
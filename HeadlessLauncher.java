@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs a node without a display, as a relay or behind the text console. Nothing here
+ * loads AWT or Swing, so it starts faster and in less memory than the GUI launchers.
+ */
+public class HeadlessLauncher {
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java HeadlessLauncher <nodeId> <port> [--peer <peerId>:<port>]... [--console]");
+            System.out.println("Example: java HeadlessLauncher relay1 8080 --peer user1:8081 --peer user2:8082");
+            return;
+        }
+        System.setProperty("java.awt.headless", "true");
+
+        try {
+            String nodeId = args[0];
+            int port = Integer.parseInt(args[1]);
+            List<String[]> initialPeers = new ArrayList<>();
+            boolean console = false;
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].equals("--console")) {
+                    console = true;
+                } else if (args[i].equals("--peer") && i + 1 < args.length) {
+                    String[] peer = args[++i].split(":", 2);
+                    if (peer.length < 2) {
+                        throw new IllegalArgumentException("Expected <peerId>:<port>, got " + args[i]);
+                    }
+                    initialPeers.add(peer);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+
+            Node node = new Node(nodeId, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(node::shutdown, nodeId + "-ShutdownHook"));
+            for (String[] peer : initialPeers) {
+                node.addPeer(peer[0], Integer.parseInt(peer[1]));
+            }
+
+            if (console) {
+                new ChatConsole(node);
+            } else {
+                node.addListener(new NodeListener() {
+                    @Override
+                    public void peerStatusChanged(String peerId, NodeStatus status) {
+                        System.out.println("Peer " + peerId + " is " + status);
+                    }
+                });
+                System.out.println("Node " + nodeId + " running headless on port " + port);
+                // relays just serve until the process is stopped
+                new CountDownLatch(1).await();
+            }
+        } catch (Exception e) {
+            System.err.println("Error starting node: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-chat indexes over the {@link MessageLog}, for paging through history without
+ * reading or holding all of it.
+ *
+ * Every chat (a room, or the private chat with one peer, keyed "@" plus the peer's ID so
+ * it can never share a room's index) has an index file with one entry per message in log order: the record's log position, the message time, raised
+ * where needed so it never decreases along the index, and the message's
+ * {@link RangeDigest#fingerprint fingerprint}. The files are
+ * memory-mapped, so a chat costs no heap however long it gets. A page is located by
+ * entry number, or by time with a binary search, and its messages are read from the
+ * log by position.
+ *
+ * Entries are appended by the log's writer thread. A checkpoint file records the log
+ * position up to which every index has been forced to disk. On open, entries pointing
+ * past the end of the recovered log are dropped, and the log is re-read from the
+ * checkpoint to add whatever the indexes are missing. Indexes written in an older
+ * format are discarded and rebuilt from the whole log.
+ *
+ * A chat's {@link RangeDigest} is built from its index the first time it is asked
+ * for, and kept up to date as entries are added. Unlike the indexes it lives on the
+ * heap, at about 24 bytes per message, because summaries are searched far more often
+ * than they change. Only the most recently used digests are kept; the others are
+ * dropped and rebuilt from their index when needed again.
+ */
+public final class HistoryStore implements MessageLog.Listener {
+    private static final Log LOG = Log.get("HistoryStore");
+
+    private static final String SUFFIX = ".idx";
+    private static final String CHECKPOINT = "checkpoint";
+    // u64 entry count, u64 format
+    private static final int HEADER_SIZE = 16;
+    private static final long FORMAT = 3;
+    // u64 log position + 1 (0 is an unwritten entry), u64 time, u64 fingerprint
+    private static final int ENTRY_SIZE = 24;
+    private static final int INITIAL_ENTRIES = 1024;
+    private static final int MAX_DIGESTS = Integer.getInteger("chat.history.maxDigests", 16);
+
+    private final Path directory;
+    private final String selfId;
+    private final MessageLog log;
+    private final Map<String, ChatIndex> indexes = new ConcurrentHashMap<>();
+    private final AtomicLong digestUses = new AtomicLong();
+    private volatile boolean closed;
+
+    /** A run of consecutive messages from one chat, oldest first. */
+    public static final class Page {
+        private final List<Message> messages;
+        private final long cursor;
+
+        Page(List<Message> messages, long cursor) {
+            this.messages = messages;
+            this.cursor = cursor;
+        }
+
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        /** Pass to {@link HistoryStore#before} for the messages just older than this page. */
+        public long getCursor() {
+            return cursor;
+        }
+
+        public boolean hasMore() {
+            return cursor > 0;
+        }
+    }
+
+    private static final class ChatIndex {
+        final Path file;
+        // replaced when the file grows; readers take count first, then the buffer
+        volatile MappedByteBuffer buffer;
+        volatile long count;
+        boolean dirty;
+        // built on first use; guarded by the index
+        RangeDigest digest;
+        long digestUsed;
+
+        ChatIndex(Path file, MappedByteBuffer buffer, long count) {
+            this.file = file;
+            this.buffer = buffer;
+            this.count = count;
+        }
+
+        static long position(ByteBuffer buffer, long entry) {
+            return buffer.getLong(HEADER_SIZE + (int) entry * ENTRY_SIZE) - 1;
+        }
+
+        static long time(ByteBuffer buffer, long entry) {
+            return buffer.getLong(HEADER_SIZE + (int) entry * ENTRY_SIZE + 8);
+        }
+
+        static long fingerprint(ByteBuffer buffer, long entry) {
+            return buffer.getLong(HEADER_SIZE + (int) entry * ENTRY_SIZE + 16);
+        }
+
+        long capacity() {
+            return (buffer.capacity() - HEADER_SIZE) / ENTRY_SIZE;
+        }
+    }
+
+    /**
+     * Opens the indexes in the directory and brings them up to date with the log. Must
+     * be created before the log's writer is started; it registers itself as the log's
+     * listener.
+     */
+    public HistoryStore(Path directory, String selfId, MessageLog log) throws IOException {
+        this.directory = directory;
+        this.selfId = selfId;
+        this.log = log;
+        Files.createDirectories(directory);
+        long end = log.getEndPosition();
+        boolean rebuild = false;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String chatId = URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()),
+                    StandardCharsets.UTF_8);
+                ChatIndex index = load(file, end);
+                if (index == null) {
+                    rebuild = true;
+                } else {
+                    indexes.put(chatId, index);
+                }
+            }
+        }
+        long from = rebuild ? 0 : Math.min(readCheckpoint(), end);
+        if (rebuild) {
+            // an outdated index may have been dropped behind the checkpoint; rescan everything
+            for (ChatIndex index : indexes.values()) {
+                index.buffer.putLong(0, 0);
+                index.count = 0;
+            }
+        }
+        int[] added = {0};
+        log.scan(from, (position, message) -> {
+            if (index(position, message)) {
+                added[0]++;
+            }
+            return true;
+        });
+        synced(end);
+        LOG.info("Opened history {}: {} chat(s), {} message(s) indexed from the log",
+            directory, indexes.size(), added[0]);
+        log.setListener(this);
+    }
+
+    /**
+     * Maps an index file, keeping only the entries that are complete and in the log.
+     * Deletes the file and returns null if it is in an older format.
+     */
+    private static ChatIndex load(Path file, long logEnd) throws IOException {
+        if (Files.size(file) >= HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.read(header, 0);
+            }
+            // deleted once the channel is closed, which Windows insists on
+            if (header.getLong(8) != FORMAT) {
+                Files.delete(file);
+                return null;
+            }
+        }
+        MappedByteBuffer buffer =
+            map(file, Math.max(Files.size(file), HEADER_SIZE + (long) INITIAL_ENTRIES * ENTRY_SIZE));
+        buffer.putLong(8, FORMAT);
+        long count = Math.min(buffer.getLong(0), (buffer.capacity() - HEADER_SIZE) / ENTRY_SIZE);
+        long valid = 0;
+        long previous = -1;
+        while (valid < count) {
+            long position = ChatIndex.position(buffer, valid);
+            if (position <= previous || position >= logEnd) {
+                break;
+            }
+            previous = position;
+            valid++;
+        }
+        if (valid != buffer.getLong(0)) {
+            buffer.putLong(0, valid);
+        }
+        return new ChatIndex(file, buffer, valid);
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /** The chat a logged message belongs to, from this node's point of view. */
+    public String chatIdOf(Message message) {
+        if (message.getType() == MessageType.GROUP_CHAT) {
+            return message.getRecipientId();
+        }
+        if (message.getType() == MessageType.CHAT) {
+            return privateChatId(selfId.equals(message.getSenderId()) ? message.getRecipientId() : message.getSenderId());
+        }
+        return null;
+    }
+
+    /** The chat ID of the private chat with a peer. */
+    public static String privateChatId(String peerId) {
+        return "@" + peerId;
+    }
+
+    @Override
+    public void written(long position, Message message) {
+        index(position, message);
+    }
+
+    /** Adds the record to its chat's index; returns whether it was added. */
+    private boolean index(long position, Message message) {
+        try {
+            return append(position, message);
+        } catch (IOException e) {
+            LOG.warn("Could not index message {}", message.getId(), e);
+            return false;
+        }
+    }
+
+    private boolean append(long position, Message message) throws IOException {
+        String chatId = chatIdOf(message);
+        if (chatId == null || closed) {
+            return false;
+        }
+        ChatIndex index = indexes.get(chatId);
+        if (index == null) {
+            Path file = directory.resolve(URLEncoder.encode(chatId, StandardCharsets.UTF_8) + SUFFIX);
+            MappedByteBuffer buffer = map(file, HEADER_SIZE + (long) INITIAL_ENTRIES * ENTRY_SIZE);
+            buffer.putLong(8, FORMAT);
+            index = new ChatIndex(file, buffer, 0);
+            indexes.put(chatId, index);
+        }
+        synchronized (index) {
+            return append(index, position, message);
+        }
+    }
+
+    private static boolean append(ChatIndex index, long position, Message message) throws IOException {
+        long count = index.count;
+        MappedByteBuffer buffer = index.buffer;
+        long time = message.getTimestamp();
+        if (count > 0) {
+            if (ChatIndex.position(buffer, count - 1) >= position) {
+                // already indexed before a restart
+                return false;
+            }
+            time = Math.max(time, ChatIndex.time(buffer, count - 1));
+        }
+        if (count == index.capacity()) {
+            buffer.force();
+            buffer = map(index.file, HEADER_SIZE + index.capacity() * 2 * ENTRY_SIZE);
+            index.buffer = buffer;
+        }
+        long fingerprint = RangeDigest.fingerprint(message.getId());
+        int offset = HEADER_SIZE + (int) count * ENTRY_SIZE;
+        buffer.putLong(offset, position + 1);
+        buffer.putLong(offset + 8, time);
+        buffer.putLong(offset + 16, fingerprint);
+        buffer.putLong(0, count + 1);
+        index.count = count + 1;
+        index.dirty = true;
+        if (index.digest != null) {
+            index.digest.add(fingerprint, position);
+        }
+        return true;
+    }
+
+    @Override
+    public void synced(long end) {
+        try {
+            for (ChatIndex index : indexes.values()) {
+                if (index.dirty) {
+                    index.buffer.force();
+                    index.dirty = false;
+                }
+            }
+            try (FileChannel channel = FileChannel.open(directory.resolve(CHECKPOINT),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ByteBuffer checkpoint = ByteBuffer.allocate(8).putLong(0, end);
+                channel.write(checkpoint, 0);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not checkpoint history", e);
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        return bytes.length < 8 ? 0 : ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /** The newest messages of the chat. */
+    public Page latest(String chatId, int limit) throws IOException {
+        return before(chatId, Long.MAX_VALUE, limit);
+    }
+
+    /** Up to {@code limit} messages older than the cursor of a previous page. */
+    public Page before(String chatId, long cursor, int limit) throws IOException {
+        ChatIndex index = indexes.get(chatId);
+        if (index == null) {
+            return new Page(Collections.emptyList(), 0);
+        }
+        long count = index.count;
+        ByteBuffer buffer = index.buffer;
+        long to = Math.min(cursor, count);
+        long from = Math.max(0, to - limit);
+        List<Message> messages = new ArrayList<>((int) (to - from));
+        for (long entry = from; entry < to; entry++) {
+            messages.add(log.read(ChatIndex.position(buffer, entry)));
+        }
+        return new Page(messages, from);
+    }
+
+    /** Up to {@code limit} messages sent before the given time, newest of them last. */
+    public Page beforeTime(String chatId, long timeMillis, int limit) throws IOException {
+        ChatIndex index = indexes.get(chatId);
+        if (index == null) {
+            return new Page(Collections.emptyList(), 0);
+        }
+        long count = index.count;
+        ByteBuffer buffer = index.buffer;
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (ChatIndex.time(buffer, middle) < timeMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return before(chatId, low, limit);
+    }
+
+    /** Number of messages in the chat's history. */
+    public long count(String chatId) {
+        ChatIndex index = indexes.get(chatId);
+        return index == null ? 0 : index.count;
+    }
+
+    /** Fingerprints of the chat's messages, with their log positions. */
+    public RangeDigest digest(String chatId) {
+        ChatIndex index = indexes.get(chatId);
+        if (index == null) {
+            return new RangeDigest();
+        }
+        if (index.digest == null) {
+            // before taking this index's lock, which evicting another must not hold
+            evictDigest(index);
+        }
+        synchronized (index) {
+            index.digestUsed = digestUses.incrementAndGet();
+            if (index.digest == null) {
+                RangeDigest digest = new RangeDigest();
+                ByteBuffer buffer = index.buffer;
+                for (long entry = 0; entry < index.count; entry++) {
+                    digest.add(ChatIndex.fingerprint(buffer, entry), ChatIndex.position(buffer, entry));
+                }
+                index.digest = digest;
+            }
+            return index.digest;
+        }
+    }
+
+    /** Drops the least recently used digest, other than the given index's, once the limit is reached. */
+    private void evictDigest(ChatIndex keep) {
+        ChatIndex oldest = null;
+        int built = 0;
+        for (ChatIndex index : indexes.values()) {
+            if (index != keep && index.digest != null) {
+                built++;
+                if (oldest == null || index.digestUsed < oldest.digestUsed) {
+                    oldest = index;
+                }
+            }
+        }
+        if (built >= MAX_DIGESTS && oldest != null) {
+            synchronized (oldest) {
+                oldest.digest = null;
+            }
+        }
+    }
+
+    /**
+     * Forces the indexes to disk and lets go of them; call after the log is closed. The
+     * files are unmapped once the buffers are collected.
+     */
+    public void close() {
+        closed = true;
+        for (ChatIndex index : indexes.values()) {
+            synchronized (index) {
+                if (index.dirty) {
+                    index.buffer.force();
+                    index.dirty = false;
+                }
+                index.digest = null;
+            }
+        }
+        indexes.clear();
+    }
+
+    /** The logged message at a position taken from this store. */
+    public Message read(long position) throws IOException {
+        return log.read(position);
+    }
+
+    public Set<String> getChatIds() {
+        return Collections.unmodifiableSet(indexes.keySet());
+    }
+}
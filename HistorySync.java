@@ -0,0 +1,299 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * Anti-entropy for room history: two members compare what they have of a room and
+ * exchange only the messages one of them is missing, so a node that was offline or
+ * joined late catches up from any peer.
+ *
+ * Each side summarises ranges of the message fingerprint space from its
+ * {@link RangeDigest} as a count and an XOR. Ranges that agree are done; ranges that
+ * disagree are split sixteen ways and compared again, until a range is small enough
+ * to list its fingerprints outright. The fingerprints the other side lacks are pushed
+ * as SYNC_DATA and the ones this side lacks are asked for with SYNC_REQUEST. When
+ * one side has nothing in a range the other pushes it whole, a batch per round trip,
+ * so a large gap is streamed at the pace the receiver answers rather than all at once.
+ * The bytes exchanged grow with the difference between the histories, plus a few
+ * summaries per level of splitting, not with the size of the room.
+ *
+ * All messages are text, in the form "roomId:payload":
+ * <ul>
+ *   <li>SYNC_SUMMARY: ranges as "level.prefix.count.xor", comma separated, hex prefix and xor</li>
+ *   <li>SYNC_KEYS: "level.prefix=fp,fp,..." for each listed range, semicolon separated</li>
+ *   <li>SYNC_REQUEST: fingerprints, comma separated</li>
+ *   <li>SYNC_DATA: a message of the room, with its author and text as "authorId:text"</li>
+ * </ul>
+ * Both sides only answer for rooms the other side is a member of. Nothing vouches for
+ * the author a peer names in SYNC_DATA unless it is the peer itself, so messages by
+ * anyone else are handed on marked as relayed by that peer.
+ */
+public class HistorySync {
+    private static final Log LOG = Log.get("HistorySync");
+
+    /** Sends a sync message to a peer; may drop it if the peer is unreachable. */
+    public interface Sender {
+        void send(String peerId, Message message) throws Exception;
+    }
+
+    // keeps a sync message well inside one frame
+    private static final int MAX_CONTENT_CHARS = 1000;
+
+    private final String selfId;
+    private final HistoryStore history;
+    private final Sender sender;
+    private final BiPredicate<String, String> shares;
+    private final Consumer<Message> backfill;
+    private final int leafSize;
+    private final int batchSize;
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong messagesPushed = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+
+    /**
+     * @param shares whether a room is shared with a peer, as (roomId, peerId)
+     * @param backfill takes a room message this node was missing, as GROUP_CHAT
+     * @param leafSize ranges with at most this many messages are listed instead of split
+     * @param batchSize most messages pushed or requested per round trip
+     */
+    public HistorySync(String selfId, HistoryStore history, Sender sender, BiPredicate<String, String> shares,
+                       Consumer<Message> backfill, int leafSize, int batchSize) {
+        this.selfId = selfId;
+        this.history = history;
+        this.sender = sender;
+        this.shares = shares;
+        this.backfill = backfill;
+        this.leafSize = leafSize;
+        this.batchSize = batchSize;
+    }
+
+    /** Starts comparing a room's history with a peer. */
+    public void start(String roomId, String peerId) {
+        if (!shares.test(roomId, peerId)) {
+            return;
+        }
+        RangeDigest digest = history.digest(roomId);
+        send(peerId, MessageType.SYNC_SUMMARY, roomId,
+            Collections.singletonList(summary(digest, 0, 0)), ",");
+    }
+
+    public void handle(Message message) {
+        String[] parts = message.getContent().split(":", 2);
+        String peerId = message.getSenderId();
+        if (parts.length < 2 || !shares.test(parts[0], peerId)) {
+            return;
+        }
+        String roomId = parts[0];
+        try {
+            switch (message.getType()) {
+                case SYNC_SUMMARY:
+                    handleSummary(roomId, peerId, parts[1]);
+                    break;
+                case SYNC_KEYS:
+                    handleKeys(roomId, peerId, parts[1]);
+                    break;
+                case SYNC_REQUEST:
+                    handleRequest(roomId, peerId, parts[1]);
+                    break;
+                case SYNC_DATA:
+                    handleData(roomId, message, parts[1]);
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Bad {} from {}: {}", message.getType(), peerId, e.getMessage());
+        }
+    }
+
+    private void handleSummary(String roomId, String peerId, String payload) {
+        RangeDigest digest = history.digest(roomId);
+        List<String> summaries = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        int budget = batchSize;
+        for (String entry : payload.split(",")) {
+            String[] fields = entry.split("\\.");
+            int level = Integer.parseInt(fields[0]);
+            long prefix = Long.parseUnsignedLong(fields[1], 16);
+            int peerCount = Integer.parseInt(fields[2]);
+            long peerXor = Long.parseUnsignedLong(fields[3], 16);
+            if (level < 0 || level > RangeDigest.MAX_LEVEL) {
+                continue;
+            }
+            int count = digest.count(level, prefix);
+            long xor = digest.xor(level, prefix);
+            if (count == peerCount && xor == peerXor) {
+                continue;
+            }
+            if (count == 0) {
+                // nothing to offer; an empty summary makes the peer push the range
+                summaries.add(summary(digest, level, prefix));
+            } else if (peerCount == 0 && count <= budget) {
+                budget -= push(roomId, peerId, digest.fingerprints(level, prefix));
+            } else if (peerCount == 0 && count <= batchSize) {
+                // this round's batch is used up; the peer's empty answer brings it back
+                summaries.add(summary(digest, level, prefix));
+            } else if (count <= leafSize || level == RangeDigest.MAX_LEVEL) {
+                keys.add(level + "." + Long.toHexString(prefix) + "=" + join(digest.fingerprints(level, prefix)));
+            } else {
+                for (long child = 0; child < 16; child++) {
+                    summaries.add(summary(digest, level + 1, prefix << 4 | child));
+                }
+            }
+        }
+        send(peerId, MessageType.SYNC_SUMMARY, roomId, summaries, ",");
+        send(peerId, MessageType.SYNC_KEYS, roomId, keys, ";");
+    }
+
+    private void handleKeys(String roomId, String peerId, String payload) {
+        RangeDigest digest = history.digest(roomId);
+        List<Long> extra = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (String range : payload.split(";")) {
+            String[] fields = range.split("=", 2);
+            String[] address = fields[0].split("\\.");
+            int level = Integer.parseInt(address[0]);
+            long prefix = Long.parseUnsignedLong(address[1], 16);
+            if (level < 0 || level > RangeDigest.MAX_LEVEL) {
+                continue;
+            }
+            Set<Long> theirs = new HashSet<>();
+            if (fields.length > 1 && !fields[1].isEmpty()) {
+                for (String key : fields[1].split(",")) {
+                    long fingerprint = Long.parseUnsignedLong(key, 16);
+                    theirs.add(fingerprint);
+                    if (!digest.contains(fingerprint)) {
+                        missing.add(key);
+                    }
+                }
+            }
+            for (long fingerprint : digest.fingerprints(level, prefix)) {
+                if (!theirs.contains(fingerprint)) {
+                    extra.add(fingerprint);
+                }
+            }
+        }
+        long[] push = new long[extra.size()];
+        for (int i = 0; i < push.length; i++) {
+            push[i] = extra.get(i);
+        }
+        push(roomId, peerId, push);
+        for (int from = 0; from < missing.size(); from += batchSize) {
+            send(peerId, MessageType.SYNC_REQUEST, roomId,
+                missing.subList(from, Math.min(missing.size(), from + batchSize)), ",");
+        }
+    }
+
+    private void handleRequest(String roomId, String peerId, String payload) {
+        String[] keys = payload.split(",");
+        long[] fingerprints = new long[Math.min(keys.length, batchSize)];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = Long.parseUnsignedLong(keys[i], 16);
+        }
+        push(roomId, peerId, fingerprints);
+    }
+
+    private void handleData(String roomId, Message message, String payload) {
+        String[] parts = payload.split(":", 2);
+        if (parts.length < 2) {
+            return;
+        }
+        RangeDigest digest = history.digest(roomId);
+        if (digest.contains(RangeDigest.fingerprint(message.getId()))) {
+            return;
+        }
+        messagesReceived.incrementAndGet();
+        String author = parts[0];
+        String relayedBy = author.equals(message.getSenderId()) ? null : message.getSenderId();
+        backfill.accept(new Message(message.getId(), author, roomId, parts[1], message.getTimestamp(),
+            Collections.emptyMap(), MessageType.GROUP_CHAT, DisseminationMode.DIRECT, 0, 0, relayedBy));
+    }
+
+    /** Sends the room's messages with these fingerprints; returns how many were sent. */
+    private int push(String roomId, String peerId, long[] fingerprints) {
+        RangeDigest digest = history.digest(roomId);
+        int sent = 0;
+        for (long fingerprint : fingerprints) {
+            long position = digest.position(fingerprint);
+            if (position < 0) {
+                continue;
+            }
+            try {
+                Message message = history.read(position);
+                if (!roomId.equals(history.chatIdOf(message))) {
+                    continue;
+                }
+                // the author travels in the content; the sender is who is syncing
+                sender.send(peerId, new Message(message.getId(), selfId, roomId,
+                    roomId + ":" + message.getSenderId() + ":" + message.getContent(), message.getTimestamp(),
+                    Collections.emptyMap(), MessageType.SYNC_DATA));
+                messagesPushed.incrementAndGet();
+                sent++;
+            } catch (Exception e) {
+                LOG.debug("Could not send history of {} to {}: {}", roomId, peerId, e.getMessage());
+            }
+        }
+        return sent;
+    }
+
+    private static String summary(RangeDigest digest, int level, long prefix) {
+        return level + "." + Long.toHexString(prefix) + "." + digest.count(level, prefix) + "."
+            + Long.toHexString(digest.xor(level, prefix));
+    }
+
+    private static String join(long[] fingerprints) {
+        StringBuilder text = new StringBuilder();
+        for (long fingerprint : fingerprints) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            text.append(Long.toHexString(fingerprint));
+        }
+        return text.toString();
+    }
+
+    /** Sends the items in as few messages as fit, never splitting an item. */
+    private void send(String peerId, MessageType type, String roomId, List<String> items, String separator) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i <= items.size(); i++) {
+            boolean last = i == items.size();
+            if (content.length() > 0 && (last || content.length() + items.get(i).length() > MAX_CONTENT_CHARS)) {
+                try {
+                    sender.send(peerId, new Message(UUID.randomUUID().toString(), selfId, peerId,
+                        roomId + ":" + content, System.currentTimeMillis(), Collections.emptyMap(), type));
+                    messagesSent.incrementAndGet();
+                } catch (Exception e) {
+                    LOG.debug("Could not send {} to {}: {}", type, peerId, e.getMessage());
+                }
+                content.setLength(0);
+            }
+            if (!last) {
+                if (content.length() > 0) {
+                    content.append(separator);
+                }
+                content.append(items.get(i));
+            }
+        }
+    }
+
+    /** Summaries, fingerprint lists and requests sent. */
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    /** Missing messages sent to peers. */
+    public long getMessagesPushed() {
+        return messagesPushed.get();
+    }
+
+    /** Missing messages received from peers and handed on. */
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+}
@@ -0,0 +1,332 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Starts many nodes in one process on localhost ports, connects every pair with
+ * {@link Node#addPeer}, puts them in rooms and drives private and group messages at
+ * fixed rates. Reports what was sent and delivered, end-to-end latency percentiles,
+ * loss, retransmissions and GC pauses over the measured interval.
+ *
+ * Latency runs from when a message was due to be sent to when the recipient's node
+ * delivers it in causal order. Measuring from the schedule rather than the actual send
+ * keeps a stalled sender from hiding its own backlog. Messages sent during the warm-up
+ * are delivered but not counted.
+ *
+ * --loss, --delay, --jitter and --reorder make every node send through a
+ * {@link LossyTransport}, so the run sees packet loss, latency and reordering as on a
+ * real network.
+ *
+ * Usage: java LoadTest [--nodes 10] [--rooms 2] [--room-size 5] [--private-rate 200]
+ *   [--group-rate 50] [--duration 10] [--warmup 2] [--drain 10] [--base-port 21000]
+ *   [--loss 0.0] [--delay 0] [--jitter 0] [--reorder 0.0] [--seed 1]
+ * Rates are messages per second across all nodes; times are in seconds, except
+ * --delay and --jitter, which are in milliseconds.
+ */
+public class LoadTest {
+    private static final String MEASURED = "load ";
+    private static final String WARMUP = "warmup ";
+
+    private final Map<String, String> options;
+    private final int nodeCount;
+    private final int roomSize;
+    private final Node[] nodes;
+    private final List<List<Integer>> rooms = new ArrayList<>();
+    private final BitSet[] seen;
+    private final AtomicInteger nextSeq = new AtomicInteger();
+    private final LatencyHistogram privateLatency = new LatencyHistogram();
+    private final LatencyHistogram groupLatency = new LatencyHistogram();
+    private final LatencyHistogram gcPauses = new LatencyHistogram();
+    private final LongAdder privateSent = new LongAdder();
+    private final LongAdder groupSent = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private volatile boolean measuringGc;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.out.println("Usage: java LoadTest [--nodes n] [--rooms n] [--room-size n] [--private-rate n]"
+                    + " [--group-rate n] [--duration s] [--warmup s] [--drain s] [--base-port p]"
+                    + " [--loss p] [--delay ms] [--jitter ms] [--reorder p] [--seed n]");
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        // read by each node as it opens its transport
+        setNetworkProperty(options, "loss", "chat.net.lossRate");
+        setNetworkProperty(options, "delay", "chat.net.delayMs");
+        setNetworkProperty(options, "jitter", "chat.net.jitterMs");
+        setNetworkProperty(options, "reorder", "chat.net.reorderRate");
+        setNetworkProperty(options, "seed", "chat.net.seed");
+
+        LoadTest test = new LoadTest(options);
+        try {
+            test.run();
+        } finally {
+            test.shutdown();
+        }
+        System.exit(0);
+    }
+
+    private static void setNetworkProperty(Map<String, String> options, String option, String property) {
+        if (options.containsKey(option)) {
+            System.setProperty(property, options.get(option));
+        }
+    }
+
+    private LoadTest(Map<String, String> options) throws Exception {
+        this.options = options;
+        this.nodeCount = Math.max(2, intOption("nodes", 10));
+        this.roomSize = Math.min(nodeCount, intOption("room-size", 5));
+        int basePort = intOption("base-port", 21000);
+        this.nodes = new Node[nodeCount];
+        this.seen = new BitSet[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            int index = i;
+            seen[i] = new BitSet();
+            nodes[i] = new Node("load" + i, basePort + i);
+            nodes[i].setDeliveryObserver(message -> delivered(index, message));
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            for (int j = 0; j < nodeCount; j++) {
+                if (i != j) {
+                    nodes[i].addPeer("load" + j, basePort + j);
+                }
+            }
+        }
+    }
+
+    private int intOption(String name, int fallback) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : fallback;
+    }
+
+    private double doubleOption(String name, double fallback) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : fallback;
+    }
+
+    private void run() throws Exception {
+        createRooms(intOption("rooms", 2));
+        // let heartbeats settle crypto mode, reliability and membership before traffic starts
+        Thread.sleep(1500);
+        listenForGcPauses();
+
+        double privateRate = doubleOption("private-rate", 200);
+        double groupRate = rooms.isEmpty() ? 0 : doubleOption("group-rate", 50);
+        long warmup = TimeUnit.MILLISECONDS.toNanos((long) (doubleOption("warmup", 2) * 1000));
+        long duration = TimeUnit.MILLISECONDS.toNanos((long) (doubleOption("duration", 10) * 1000));
+        long start = System.nanoTime();
+        long measureFrom = start + warmup;
+        long end = measureFrom + duration;
+        long retransmittedBefore = 0;
+        long packetsBefore = 0;
+
+        List<Thread> drivers = new ArrayList<>();
+        if (privateRate > 0) {
+            drivers.add(driver("LoadTest-Private", privateRate, start, measureFrom, end, this::sendPrivate));
+        }
+        if (groupRate > 0) {
+            drivers.add(driver("LoadTest-Group", groupRate, start, measureFrom, end, this::sendGroup));
+        }
+        for (Thread driver : drivers) {
+            driver.start();
+        }
+        while (System.nanoTime() < measureFrom) {
+            LockSupport.parkNanos(measureFrom - System.nanoTime());
+        }
+        measuringGc = true;
+        for (Node node : nodes) {
+            retransmittedBefore += node.getRetransmittedCount();
+            packetsBefore += node.getPacketsSent();
+        }
+        for (Thread driver : drivers) {
+            driver.join();
+        }
+        long sendingEnded = System.nanoTime();
+        measuringGc = false;
+
+        long drainDeadline = sendingEnded + TimeUnit.SECONDS.toNanos(intOption("drain", 10));
+        while (delivered.sum() < expected.sum() && System.nanoTime() < drainDeadline) {
+            Thread.sleep(100);
+        }
+        long retransmitted = -retransmittedBefore;
+        long packets = -packetsBefore;
+        for (Node node : nodes) {
+            retransmitted += node.getRetransmittedCount();
+            packets += node.getPacketsSent();
+        }
+        report(privateRate, groupRate, duration, packets, retransmitted);
+    }
+
+    /** Room r is owned by node r * roomSize and has the next roomSize nodes, wrapping around. */
+    private void createRooms(int roomCount) throws InterruptedException {
+        for (int r = 0; r < roomCount && roomSize > 1; r++) {
+            List<Integer> members = new ArrayList<>();
+            for (int k = 0; k < roomSize; k++) {
+                members.add((r * roomSize + k) % nodeCount);
+            }
+            rooms.add(members);
+            Node owner = nodes[members.get(0)];
+            owner.createGroup(roomId(r));
+            for (int k = 1; k < members.size(); k++) {
+                owner.addMemberToGroup(roomId(r), "load" + members.get(k));
+            }
+        }
+        Thread.sleep(500);
+        // members added early only heard of those before them; send everyone the full list
+        for (int r = 0; r < rooms.size(); r++) {
+            List<Integer> members = rooms.get(r);
+            for (int k = 1; k < members.size(); k++) {
+                nodes[members.get(0)].addMemberToGroup(roomId(r), "load" + members.get(k));
+            }
+        }
+    }
+
+    private static String roomId(int room) {
+        return "loadroom" + room;
+    }
+
+    private interface Send {
+        void send(Random random, String content) throws Exception;
+    }
+
+    /** Sends at a fixed rate, catching up in a burst if it falls behind. */
+    private Thread driver(String name, double rate, long start, long measureFrom, long end, Send send) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        Thread thread = new Thread(() -> {
+            Random random = new Random(name.hashCode());
+            for (long due = start; due < end; due += interval) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                String prefix = due >= measureFrom ? MEASURED : WARMUP;
+                try {
+                    send.send(random, prefix + nextSeq.getAndIncrement() + " " + due);
+                } catch (Exception e) {
+                    sendErrors.increment();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void sendPrivate(Random random, String content) throws Exception {
+        int from = random.nextInt(nodeCount);
+        int to = (from + 1 + random.nextInt(nodeCount - 1)) % nodeCount;
+        nodes[from].sendMessage(content, "load" + to);
+        if (content.startsWith(MEASURED)) {
+            privateSent.increment();
+            expected.increment();
+        }
+    }
+
+    private void sendGroup(Random random, String content) throws Exception {
+        int room = random.nextInt(rooms.size());
+        List<Integer> members = rooms.get(room);
+        int from = members.get(random.nextInt(members.size()));
+        nodes[from].sendGroupMessage(content, roomId(room));
+        if (content.startsWith(MEASURED)) {
+            groupSent.increment();
+            expected.add(members.size() - 1);
+        }
+    }
+
+    private void delivered(int node, Message message) {
+        String content = message.getContent();
+        if (content == null || !content.startsWith(MEASURED)) {
+            return;
+        }
+        long now = System.nanoTime();
+        String[] fields = content.split(" ");
+        int seq = Integer.parseInt(fields[1]);
+        long due = Long.parseLong(fields[2]);
+        boolean first;
+        synchronized (seen[node]) {
+            first = !seen[node].get(seq);
+            seen[node].set(seq);
+        }
+        if (!first) {
+            duplicates.increment();
+            return;
+        }
+        delivered.increment();
+        (message.getType() == MessageType.GROUP_CHAT ? groupLatency : privateLatency).record(now - due);
+    }
+
+    /** Records stop-the-world collections; concurrent cycles run alongside the nodes and are left out. */
+    private void listenForGcPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof NotificationEmitter)) {
+                continue;
+            }
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (!measuringGc || !notification.getType()
+                        .equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (!info.getGcName().contains("Concurrent") && !info.getGcName().contains("Cycles")) {
+                    gcPauses.record(TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()));
+                }
+            }, null, null);
+        }
+    }
+
+    private void report(double privateRate, double groupRate, long duration, long packets, long retransmitted) {
+        double seconds = duration / 1e9;
+        long expectedCount = expected.sum();
+        long deliveredCount = delivered.sum();
+        System.out.println();
+        System.out.printf("Load test: %d nodes, %d room(s) of %d, %.0f s at %.0f private + %.0f group msg/s"
+                + ", network loss=%s delay=%sms jitter=%sms reorder=%s%n",
+            nodeCount, rooms.size(), roomSize, seconds, privateRate, groupRate,
+            options.getOrDefault("loss", "0"), options.getOrDefault("delay", "0"),
+            options.getOrDefault("jitter", "0"), options.getOrDefault("reorder", "0"));
+        System.out.printf("sent       private %d (%.1f/s)  group %d (%.1f/s)  errors %d%n",
+            privateSent.sum(), privateSent.sum() / seconds, groupSent.sum(), groupSent.sum() / seconds,
+            sendErrors.sum());
+        System.out.printf("delivered  %d/%d (%.1f/s)  loss %.3f%%  duplicates %d%n",
+            deliveredCount, expectedCount, deliveredCount / seconds,
+            expectedCount == 0 ? 0.0 : 100.0 * (expectedCount - deliveredCount) / expectedCount, duplicates.sum());
+        printLatency("private", privateLatency);
+        printLatency("group", groupLatency);
+        System.out.printf("network    packets %d (%.1f/s)  retransmitted %d (%.2f%%)%n",
+            packets, packets / seconds, retransmitted, packets == 0 ? 0.0 : 100.0 * retransmitted / packets);
+        System.out.printf("gc         %d pause(s), max %.1f ms, p99 %.1f ms, total %.1f ms%n",
+            gcPauses.getCount(), gcPauses.getMaxNanos() / 1e6, gcPauses.getPercentileNanos(0.99) / 1e6,
+            gcPauses.getMeanNanos() * gcPauses.getCount() / 1e6);
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("%-10s latency ms p50=%.2f p99=%.2f p999=%.2f max=%.2f (n=%d)%n", name,
+            histogram.getPercentileNanos(0.5) / 1e6, histogram.getPercentileNanos(0.99) / 1e6,
+            histogram.getPercentileNanos(0.999) / 1e6, histogram.getMaxNanos() / 1e6, histogram.getCount());
+    }
+
+    private void shutdown() {
+        for (Node node : nodes) {
+            if (node != null) {
+                node.shutdown();
+            }
+        }
+    }
+}
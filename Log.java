@@ -0,0 +1,477 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Process-wide diagnostic log, written as JSON lines by one background thread.
+ *
+ * Logging a message checks the level first and does nothing else if it is off. When it
+ * is on, the caller only copies the format and its arguments into a slot of a fixed
+ * ring and returns: no formatting, no I/O and no lock. The writer thread fills in the
+ * "{}" placeholders, writes one JSON object per line and rotates the file when it grows
+ * past {@code chat.logging.maxFileMb}, keeping {@code chat.logging.maxFiles} old ones
+ * as chat.log.1, chat.log.2 and so on. If the ring is full the event is dropped and
+ * counted rather than making the caller wait, so a flood of debug output costs at most
+ * the writer thread, never the threads doing the work. Arguments are formatted later
+ * on the writer thread, so pass values that do not change afterwards.
+ *
+ * A line looks like:
+ * <pre>{"ts":"2026-01-01T12:00:00.123Z","level":"WARN","logger":"Node","node":"alice",
+ * "thread":"Dispatch-0","message":"Retry to bob failed: timeout"}</pre>
+ * with an "error" field holding the stack trace when the last argument is a Throwable
+ * that no placeholder used.
+ *
+ * Configured with {@code chat.logging.level} (DEBUG, INFO, WARN, ERROR or OFF; INFO by
+ * default), {@code chat.logging.level.<logger>} for one logger, {@code chat.logging.file}
+ * ("-" for standard output) and {@code chat.logging.bufferSize}.
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final Level DEFAULT_LEVEL = parse(System.getProperty("chat.logging.level"), Level.INFO);
+    private static final String FILE = System.getProperty("chat.logging.file",
+        Paths.get(System.getProperty("chat.data.dir", "data"), "logs", "chat.log").toString());
+    private static final long MAX_FILE_BYTES = Long.getLong("chat.logging.maxFileMb", 16) << 20;
+    private static final int MAX_FILES = Integer.getInteger("chat.logging.maxFiles", 5);
+    private static final int BUFFER_SIZE =
+        Integer.highestOneBit(Math.max(64, Integer.getInteger("chat.logging.bufferSize", 8192)));
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long CLOSE_TIMEOUT_MILLIS = 2000;
+    private static final DateTimeFormatter SECONDS =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    /** One queued log call; the sequence is written last and publishes the other fields. */
+    private static final class Event {
+        volatile long sequence = -1;
+        long time;
+        Level level;
+        Log log;
+        String thread;
+        String format;
+        int argCount;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+    }
+
+    private static final Event[] RING = new Event[BUFFER_SIZE];
+    private static final int MASK = BUFFER_SIZE - 1;
+    private static final AtomicLong CLAIMED = new AtomicLong();
+    private static final AtomicLong CONSUMED = new AtomicLong();
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final Thread WRITER;
+    private static volatile boolean closing;
+
+    static {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            RING[i] = new Event();
+        }
+        WRITER = new Thread(new Sink(), "Log-Writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::close, "Log-Close"));
+    }
+
+    private final String name;
+    private final String node;
+    private volatile Level level;
+
+    private Log(String name, String node) {
+        this.name = name;
+        this.node = node;
+        this.level = parse(System.getProperty("chat.logging.level." + name), DEFAULT_LEVEL);
+    }
+
+    public static Log get(String name) {
+        return new Log(name, null);
+    }
+
+    /** A log whose lines also name the node they are about. */
+    public static Log get(String name, String node) {
+        return new Log(name, node);
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= this.level.ordinal();
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, message, 0, null, null, null);
+        }
+    }
+
+    public void debug(String format, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, format, 1, arg, null, null);
+        }
+    }
+
+    public void debug(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, format, 2, arg0, arg1, null);
+        }
+    }
+
+    public void debug(String format, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, format, 3, arg0, arg1, arg2);
+        }
+    }
+
+    public void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, message, 0, null, null, null);
+        }
+    }
+
+    public void info(String format, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, format, 1, arg, null, null);
+        }
+    }
+
+    public void info(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, format, 2, arg0, arg1, null);
+        }
+    }
+
+    public void info(String format, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, format, 3, arg0, arg1, arg2);
+        }
+    }
+
+    public void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(Level.WARN, message, 0, null, null, null);
+        }
+    }
+
+    public void warn(String format, Object arg) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(Level.WARN, format, 1, arg, null, null);
+        }
+    }
+
+    public void warn(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(Level.WARN, format, 2, arg0, arg1, null);
+        }
+    }
+
+    public void warn(String format, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(Level.WARN, format, 3, arg0, arg1, arg2);
+        }
+    }
+
+    public void error(String message) {
+        if (isEnabled(Level.ERROR)) {
+            enqueue(Level.ERROR, message, 0, null, null, null);
+        }
+    }
+
+    public void error(String format, Object arg) {
+        if (isEnabled(Level.ERROR)) {
+            enqueue(Level.ERROR, format, 1, arg, null, null);
+        }
+    }
+
+    public void error(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.ERROR)) {
+            enqueue(Level.ERROR, format, 2, arg0, arg1, null);
+        }
+    }
+
+    public void error(String format, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(Level.ERROR)) {
+            enqueue(Level.ERROR, format, 3, arg0, arg1, arg2);
+        }
+    }
+
+    private void enqueue(Level level, String format, int argCount, Object arg0, Object arg1, Object arg2) {
+        long sequence;
+        do {
+            sequence = CLAIMED.get();
+            if (sequence - CONSUMED.get() >= BUFFER_SIZE || closing) {
+                DROPPED.increment();
+                return;
+            }
+        } while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+        Event event = RING[(int) sequence & MASK];
+        event.time = System.currentTimeMillis();
+        event.level = level;
+        event.log = this;
+        event.thread = Thread.currentThread().getName();
+        event.format = format;
+        event.argCount = argCount;
+        event.arg0 = arg0;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.sequence = sequence;
+    }
+
+    /** Events dropped because the ring was full. */
+    public static long getDroppedCount() {
+        return DROPPED.sum();
+    }
+
+    /** Waits until everything logged so far is written, or the timeout passes. */
+    public static void flush(long timeout, TimeUnit unit) {
+        long target = CLAIMED.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (CONSUMED.get() < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private static void close() {
+        flush(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        closing = true;
+        LockSupport.unpark(WRITER);
+        try {
+            WRITER.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Level parse(String value, Level fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    /** Drains the ring into the log file; the only thread that formats or writes. */
+    private static final class Sink implements Runnable {
+        private final StringBuilder line = new StringBuilder(256);
+        private final StringBuilder message = new StringBuilder(128);
+        // "2026-01-01T12:00:00." for the second last written, so most lines skip formatting a date
+        private long second = Long.MIN_VALUE;
+        private String secondText;
+        private Writer out;
+        private long fileBytes;
+        private long droppedReported;
+        private boolean failed;
+
+        @Override
+        public void run() {
+            while (true) {
+                long next = CONSUMED.get();
+                Event event = RING[(int) next & MASK];
+                if (event.sequence != next) {
+                    if (CLAIMED.get() > next) {
+                        // claimed but not yet filled in; the producer is a few stores away
+                        Thread.yield();
+                        continue;
+                    }
+                    reportDropped();
+                    flushQuietly();
+                    if (closing) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                try {
+                    format(event);
+                } catch (RuntimeException e) {
+                    // a toString() that throws must not stop the log
+                    line.setLength(0);
+                }
+                event.log = null;
+                event.arg0 = null;
+                event.arg1 = null;
+                event.arg2 = null;
+                CONSUMED.set(next + 1);
+                write();
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing left to report it to
+                }
+            }
+        }
+
+        private void reportDropped() {
+            long dropped = DROPPED.sum();
+            if (dropped > droppedReported) {
+                line.setLength(0);
+                appendLine(System.currentTimeMillis(), Level.WARN, "Log", null, Thread.currentThread().getName(),
+                    "Dropped " + (dropped - droppedReported) + " log events, the buffer was full", null);
+                droppedReported = dropped;
+                write();
+            }
+        }
+
+        private void format(Event event) {
+            message.setLength(0);
+            int used = 0;
+            String format = event.format == null ? "null" : event.format;
+            int from = 0;
+            int at;
+            while (used < event.argCount && (at = format.indexOf("{}", from)) >= 0) {
+                message.append(format, from, at).append(argument(event, used++));
+                from = at + 2;
+            }
+            message.append(format, from, format.length());
+            Object last = event.argCount == 0 ? null : argument(event, event.argCount - 1);
+            String error = null;
+            if (used < event.argCount && last instanceof Throwable) {
+                StringWriter trace = new StringWriter();
+                ((Throwable) last).printStackTrace(new PrintWriter(trace));
+                error = trace.toString();
+            }
+            line.setLength(0);
+            appendLine(event.time, event.level, event.log.name, event.log.node, event.thread, message, error);
+        }
+
+        private static Object argument(Event event, int index) {
+            return index == 0 ? event.arg0 : index == 1 ? event.arg1 : event.arg2;
+        }
+
+        private void appendLine(long time, Level level, String logger, String node, String thread,
+                                CharSequence text, String error) {
+            long millis = Math.floorMod(time, 1000L);
+            if (time - millis != second) {
+                second = time - millis;
+                secondText = SECONDS.format(Instant.ofEpochMilli(second)) + ".";
+            }
+            line.append("{\"ts\":\"").append(secondText)
+                .append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+                .append((char) ('0' + millis % 10)).append("Z\",\"level\":\"")
+                .append(level).append("\",\"logger\":");
+            appendString(logger);
+            if (node != null) {
+                line.append(",\"node\":");
+                appendString(node);
+            }
+            line.append(",\"thread\":");
+            appendString(thread);
+            line.append(",\"message\":");
+            appendString(text);
+            if (error != null) {
+                line.append(",\"error\":");
+                appendString(error);
+            }
+            line.append("}\n");
+        }
+
+        private void appendString(CharSequence text) {
+            line.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '"': line.append("\\\""); break;
+                    case '\\': line.append("\\\\"); break;
+                    case '\n': line.append("\\n"); break;
+                    case '\r': line.append("\\r"); break;
+                    case '\t': line.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            line.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            line.append(c);
+                        }
+                }
+            }
+            line.append('"');
+        }
+
+        private void write() {
+            if (line.length() == 0) {
+                return;
+            }
+            try {
+                if (out == null) {
+                    open();
+                }
+                out.append(line);
+                // counts chars, which is close enough for the mostly ASCII lines written here
+                fileBytes += line.length();
+                if (fileBytes >= MAX_FILE_BYTES && !FILE.equals("-")) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                if (!failed) {
+                    failed = true;
+                    System.err.println("Log file " + FILE + " is not writable, logging to stderr: " + e.getMessage());
+                }
+                out = new PrintWriter(System.err, true);
+                fileBytes = Long.MIN_VALUE;
+            }
+        }
+
+        private void open() throws IOException {
+            if (FILE.equals("-")) {
+                out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+                return;
+            }
+            File file = new File(FILE);
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            fileBytes = file.length();
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        private void rotate() throws IOException {
+            out.close();
+            out = null;
+            new File(FILE + "." + MAX_FILES).delete();
+            for (int i = MAX_FILES - 1; i >= 1; i--) {
+                new File(FILE + "." + i).renameTo(new File(FILE + "." + (i + 1)));
+            }
+            if (MAX_FILES > 0) {
+                new File(FILE).renameTo(new File(FILE + ".1"));
+            } else {
+                new File(FILE).delete();
+            }
+            open();
+        }
+
+        private void flushQuietly() {
+            if (out != null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    // reported by the next write
+                }
+            }
+        }
+    }
+}
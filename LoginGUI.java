@@ -107,7 +107,6 @@ public class LoginGUI extends JFrame {
                 // **Launch Chat GUI**
                 SwingUtilities.invokeLater(() -> {
                     ChatGUI chatGUI = new ChatGUI(node);
-                    node.setGUI(chatGUI);
                     chatGUI.setVisible(true);
                 });
 
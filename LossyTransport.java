@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps a {@link Transport} and makes localhost behave like a real network for testing:
+ * outgoing datagrams are dropped, delayed by a base latency plus random jitter, or held
+ * back long enough for later ones to overtake them. Every node applies it to what it
+ * sends, so both directions of a link are affected.
+ *
+ * {@link Node} wraps its transport when {@code chat.net.lossRate}, {@code chat.net.delayMs},
+ * {@code chat.net.jitterMs} or {@code chat.net.reorderRate} is set; {@code chat.net.seed}
+ * makes the drops repeatable. Delayed datagrams are copied and timed by the shared
+ * {@link TimerWheel}, so delays are only as fine as its tick; the send itself runs on an
+ * executor of its own, since a full socket buffer makes it wait.
+ */
+public class LossyTransport implements Transport {
+    private static final Log LOG = Log.get("LossyTransport");
+
+    private final Transport transport;
+    private final double lossRate;
+    private final long delayMicros;
+    private final long jitterMicros;
+    private final double reorderRate;
+    private final Random random;
+    private final TimerWheel timer;
+    private final Executor executor;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+
+    public LossyTransport(Transport transport, double lossRate, long delayMicros, long jitterMicros,
+                          double reorderRate, long seed, TimerWheel timer, Executor executor) {
+        this.transport = transport;
+        this.lossRate = lossRate;
+        this.delayMicros = delayMicros;
+        this.jitterMicros = jitterMicros;
+        this.reorderRate = reorderRate;
+        this.random = new Random(seed);
+        this.timer = timer;
+        this.executor = executor;
+    }
+
+    /** Wraps the transport as the chat.net.* properties ask, or returns it unchanged if none are set. */
+    public static Transport wrapIfConfigured(Transport transport, String seedKey, ServiceScope services) {
+        double lossRate = Double.parseDouble(System.getProperty("chat.net.lossRate", "0"));
+        double delayMillis = Double.parseDouble(System.getProperty("chat.net.delayMs", "0"));
+        double jitterMillis = Double.parseDouble(System.getProperty("chat.net.jitterMs", "0"));
+        double reorderRate = Double.parseDouble(System.getProperty("chat.net.reorderRate", "0"));
+        if (lossRate <= 0 && delayMillis <= 0 && jitterMillis <= 0 && reorderRate <= 0) {
+            return transport;
+        }
+        long seed = Long.getLong("chat.net.seed", System.nanoTime()) ^ seedKey.hashCode();
+        LOG.info("Simulating a lossy network for {}: {}", seedKey, String.format(
+            "loss=%.3f delay=%.1fms jitter=%.1fms reorder=%.3f", lossRate, delayMillis, jitterMillis, reorderRate));
+        return new LossyTransport(transport, lossRate, (long) (delayMillis * 1000), (long) (jitterMillis * 1000),
+            reorderRate, seed, TimerWheel.shared(), services.newTaskExecutor("DelayedSend", 1));
+    }
+
+    @Override
+    public void start(Receiver receiver, ThreadFactory threads) throws IOException {
+        transport.start(receiver, threads);
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress target) throws IOException {
+        double drop;
+        long delay;
+        boolean reorder;
+        synchronized (random) {
+            drop = random.nextDouble();
+            delay = delayMicros + (jitterMicros > 0 ? (long) (random.nextDouble() * jitterMicros) : 0);
+            reorder = reorderRate > 0 && random.nextDouble() < reorderRate;
+        }
+        if (drop < lossRate) {
+            // a lost datagram still leaves the sender's buffer, as the kernel would take it
+            data.position(data.limit());
+            dropped.increment();
+            return;
+        }
+        if (reorder) {
+            // held back past a few of the datagrams sent after it
+            delay += Math.max(2000, 2 * (delayMicros + jitterMicros));
+            reordered.increment();
+        }
+        if (delay <= 0) {
+            transport.send(data, target);
+            return;
+        }
+        // the caller reuses its buffer as soon as this returns
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data).flip();
+        delayed.increment();
+        timer.schedule(() -> {
+            try {
+                executor.execute(() -> {
+                    try {
+                        transport.send(copy, target);
+                    } catch (IOException e) {
+                        LOG.debug("Delayed send to {} failed: {}", target, e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the node shut down while the datagram was delayed
+            }
+        }, delay, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        transport.release(buffer);
+    }
+
+    @Override
+    public ByteBuffer acquire(int capacity) {
+        return transport.acquire(capacity);
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    public long getDroppedCount() { return dropped.sum(); }
+    public long getDelayedCount() { return delayed.sum(); }
+    public long getReorderedCount() { return reordered.sum(); }
+}
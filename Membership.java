@@ -0,0 +1,129 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An immutable view of a {@link ChatRoom}'s members and allowed users, as sorted arrays
+ * of {@link NodeIds} handles. The room publishes a new snapshot on every change, so a
+ * reader holding one can check and iterate it without locking while the room moves on.
+ *
+ * The version is the room admin's: the admin advances it once per change it makes, and
+ * other members take it, together with the member list, from the admin's GROUP_INFO.
+ * Their own additions leave it alone, so versions compare across nodes and a group
+ * message stamped with a higher version than the receiver's tells it that it has missed
+ * one of the admin's changes.
+ */
+public final class Membership {
+    static final Membership EMPTY = new Membership(0, new int[0], new int[0]);
+
+    private final long version;
+    private final int[] members;
+    private final int[] allowedUsers;
+    // built on first use; racing readers may each build one, which is harmless
+    private Set<String> memberIds;
+
+    private Membership(long version, int[] members, int[] allowedUsers) {
+        this.version = version;
+        this.members = members;
+        this.allowedUsers = allowedUsers;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /** Member handles in ascending order. The array is shared: do not modify it. */
+    public int[] getMemberHandles() {
+        return members;
+    }
+
+    public boolean isMember(int handle) {
+        return contains(members, handle);
+    }
+
+    public boolean isMember(String nodeId) {
+        return contains(members, NodeIds.find(nodeId));
+    }
+
+    public boolean isAllowed(String nodeId) {
+        return contains(allowedUsers, NodeIds.find(nodeId));
+    }
+
+    /** Member IDs as an unmodifiable set, built once per snapshot. */
+    public Set<String> getMembers() {
+        Set<String> ids = memberIds;
+        if (ids == null) {
+            ids = names(members);
+            memberIds = ids;
+        }
+        return ids;
+    }
+
+    public Set<String> getAllowedUsers() {
+        return names(allowedUsers);
+    }
+
+    /** The next snapshot with the member added, or this one if it was already there. */
+    Membership withMember(int handle) {
+        int[] next = with(members, handle);
+        return next == members ? this : new Membership(version, next, allowedUsers);
+    }
+
+    Membership withAllowedUser(int handle) {
+        int[] next = with(allowedUsers, handle);
+        return next == allowedUsers ? this : new Membership(version, members, next);
+    }
+
+    Membership withVersion(long version) {
+        return version == this.version ? this : new Membership(version, members, allowedUsers);
+    }
+
+    /** The admin's member list at the admin's version, in place of this node's. */
+    Membership withMembers(long version, Iterable<String> members) {
+        return new Membership(version, handles(members), allowedUsers);
+    }
+
+    /** A snapshot read back from serialized node IDs; handles are only valid in one process. */
+    static Membership of(long version, Iterable<String> members, Iterable<String> allowedUsers) {
+        return new Membership(version, handles(members), handles(allowedUsers));
+    }
+
+    private static boolean contains(int[] handles, int handle) {
+        return handle >= 0 && Arrays.binarySearch(handles, handle) >= 0;
+    }
+
+    /** The set plus one handle, or the same array if it is already there. */
+    private static int[] with(int[] handles, int handle) {
+        int slot = Arrays.binarySearch(handles, handle);
+        if (slot >= 0) {
+            return handles;
+        }
+        slot = -slot - 1;
+        int[] result = new int[handles.length + 1];
+        System.arraycopy(handles, 0, result, 0, slot);
+        result[slot] = handle;
+        System.arraycopy(handles, slot, result, slot + 1, handles.length - slot);
+        return result;
+    }
+
+    private static Set<String> names(int[] handles) {
+        Set<String> names = new HashSet<>();
+        for (int handle : handles) {
+            names.add(NodeIds.name(handle));
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    private static int[] handles(Iterable<String> names) {
+        int[] handles = new int[0];
+        for (String name : names) {
+            handles = with(handles, NodeIds.handle(name));
+        }
+        return handles;
+    }
+}
@@ -2,6 +2,9 @@ import java.io.*;
 import java.util.Map;
 
 public class Message implements Serializable {
+    // Pinned to the value of the original serialized form so legacy peers stay compatible.
+    private static final long serialVersionUID = -8484191314615623658L;
+
     private final String id;
     private final String senderId;
     private final String recipientId;
@@ -9,9 +12,35 @@ public class Message implements Serializable {
     private final long timestamp;
     private final Map<String, Integer> vectorClock;
     private final MessageType type;
+    // Relay metadata for group messages; transient so the legacy serialized form is unchanged
+    private final transient DisseminationMode dissemination;
+    private final transient int hops;
+    // Sender's room membership version on group messages, 0 if not stamped; see Membership
+    private final transient long membershipVersion;
+    // the peer a history sync got this message from, when that was not its author
+    private final transient String relayedBy;
     
     public Message(String id, String senderId, String recipientId, String content, 
                   long timestamp, Map<String, Integer> vectorClock, MessageType type) {
+        this(id, senderId, recipientId, content, timestamp, vectorClock, type, DisseminationMode.DIRECT, 0);
+    }
+
+    public Message(String id, String senderId, String recipientId, String content,
+                  long timestamp, Map<String, Integer> vectorClock, MessageType type,
+                  DisseminationMode dissemination, int hops) {
+        this(id, senderId, recipientId, content, timestamp, vectorClock, type, dissemination, hops, 0);
+    }
+
+    public Message(String id, String senderId, String recipientId, String content,
+                  long timestamp, Map<String, Integer> vectorClock, MessageType type,
+                  DisseminationMode dissemination, int hops, long membershipVersion) {
+        this(id, senderId, recipientId, content, timestamp, vectorClock, type, dissemination, hops,
+            membershipVersion, null);
+    }
+
+    public Message(String id, String senderId, String recipientId, String content,
+                  long timestamp, Map<String, Integer> vectorClock, MessageType type,
+                  DisseminationMode dissemination, int hops, long membershipVersion, String relayedBy) {
         this.id = id;
         this.senderId = senderId;
         this.recipientId = recipientId;
@@ -19,19 +48,24 @@ public class Message implements Serializable {
         this.timestamp = timestamp;
         this.vectorClock = vectorClock;
         this.type = type;
+        this.dissemination = dissemination;
+        this.hops = hops;
+        this.membershipVersion = membershipVersion;
+        this.relayedBy = relayedBy;
+    }
+
+    /** Copy of this message one relay hop further from the sender. */
+    public Message relayed() {
+        return new Message(id, senderId, recipientId, content, timestamp, vectorClock, type,
+            getDissemination(), hops + 1, membershipVersion, relayedBy);
     }
     
     public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(this);
-        return baos.toByteArray();
+        return MessageCodec.toBytes(this);
     }
     
-    public static Message fromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-        ObjectInputStream ois = new ObjectInputStream(bais);
-        return (Message) ois.readObject();
+    public static Message fromBytes(byte[] bytes) throws IOException {
+        return MessageCodec.fromBytes(bytes);
     }
     
     // Getters
@@ -42,4 +76,11 @@ public class Message implements Serializable {
     public long getTimestamp() { return timestamp; }
     public Map<String, Integer> getVectorClock() { return vectorClock; }
     public MessageType getType() { return type; }
+    public DisseminationMode getDissemination() {
+        return dissemination == null ? DisseminationMode.DIRECT : dissemination;
+    }
+    public int getHops() { return hops; }
+    public long getMembershipVersion() { return membershipVersion; }
+    /** The peer that passed this message on without being its author, or null; the author is then unverified. */
+    public String getRelayedBy() { return relayedBy; }
 }
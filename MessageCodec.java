@@ -0,0 +1,489 @@
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Compact binary wire format for {@link Message}.
+ *
+ * Layout (version 1):
+ * <pre>
+ *   byte    version
+ *   byte    flags (FLAG_*)
+ *   byte    type ordinal
+ *   varlong timestamp
+ *   string  id
+ *   string  senderId      (interned)
+ *   string  recipientId   (interned, nullable)
+ *   string  content       (nullable)
+ *   varint  clock size, then per entry: string nodeId (interned), varint value
+ *           (with FLAG_CLOCK_DELTA only the entries changed since the sender's previous
+ *           message in the conversation, see {@link CausalDelivery})
+ *   if FLAG_RELAY: byte dissemination mode, varint hops
+ *   if FLAG_MEMBERSHIP: varlong sender's room membership version
+ *   if FLAG_RELAYED_BY: string the peer that passed on someone else's message
+ * </pre>
+ * Strings are a varint of (UTF-8 length + 1) followed by the bytes; 0 means null.
+ *
+ * Several messages for the same peer can be packed into one frame:
+ * <pre>
+ *   byte    FRAME_MARKER
+ *   byte    frame flags (FRAME_FLAG_*)
+ *   u16     message count
+ *   per message: u16 length, encoded message
+ * </pre>
+ *
+ * Legacy Java-serialized packets start with the stream magic 0xACED. They are refused
+ * unless {@code chat.codec.legacyDecode} is set for a rolling upgrade, and even then only
+ * the classes a legacy message is made of are deserialized. Set
+ * {@code chat.codec.legacyEncode} to keep sending the old format until every node has
+ * been upgraded; it turns legacyDecode on too unless that is set explicitly.
+ */
+public final class MessageCodec {
+    public static final byte VERSION = 1;
+    static final byte FLAG_RELAY = 0x01;
+    static final byte FLAG_CLOCK_DELTA = 0x02;
+    static final byte FLAG_MEMBERSHIP = 0x04;
+    static final byte FLAG_RELAYED_BY = 0x08;
+    private static final byte KNOWN_FLAGS = FLAG_RELAY | FLAG_CLOCK_DELTA | FLAG_MEMBERSHIP | FLAG_RELAYED_BY;
+    public static final byte FRAME_MARKER = 0x46;
+    public static final int FRAME_HEADER_SIZE = 4;
+    /** Set by senders that accept GCM packets, so capability travels with data frames too. */
+    public static final byte FRAME_FLAG_GCM = 0x01;
+
+    static final boolean LEGACY_ENCODE =
+        Boolean.parseBoolean(System.getProperty("chat.codec.legacyEncode", "false"));
+    // on with legacyEncode, so a node can read back its own logs and offline queues
+    static final boolean LEGACY_DECODE = Boolean.parseBoolean(
+        System.getProperty("chat.codec.legacyDecode", String.valueOf(LEGACY_ENCODE)));
+
+    private static final byte LEGACY_MAGIC_0 = (byte) 0xAC;
+    private static final byte LEGACY_MAGIC_1 = (byte) 0xED;
+    // what a legacy Message is made of; the stream is rejected at the first other class.
+    // Enum and Number are checked as supertypes, Map$Entry[] by HashMap.readObject
+    private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+        "maxdepth=6;maxrefs=8192;maxbytes=65507;Message;MessageType;java.lang.Enum;"
+        + "java.util.HashMap;java.util.Map$Entry;java.lang.String;java.lang.Integer;java.lang.Number;!*");
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final DisseminationMode[] MODES = DisseminationMode.values();
+
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+    private static final ThreadLocal<byte[]> STRING_SCRATCH =
+        ThreadLocal.withInitial(() -> new byte[256]);
+    private static final Interner NODE_IDS = new Interner(1024);
+
+    private MessageCodec() {
+    }
+
+    /** Encodes the message into a fresh array. */
+    public static byte[] toBytes(Message message) throws IOException {
+        ByteBuffer buffer = encodeReusable(message);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Encodes the message into the calling thread's scratch buffer, grown as needed, and
+     * returns it flipped for reading. The contents are only valid until the next call on
+     * the same thread.
+     */
+    public static ByteBuffer encodeReusable(Message message) throws IOException {
+        if (LEGACY_ENCODE) {
+            return ByteBuffer.wrap(toLegacyBytes(message));
+        }
+        ByteBuffer buffer = SCRATCH.get();
+        while (true) {
+            buffer.clear();
+            try {
+                encode(message, buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                SCRATCH.set(buffer);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes the message at the buffer's position. Throws {@link BufferOverflowException}
+     * if the buffer is too small; the buffer position is then undefined.
+     */
+    public static void encode(Message message, ByteBuffer out) {
+        boolean relay = message.getDissemination() != DisseminationMode.DIRECT;
+        Map<String, Integer> clock = message.getVectorClock();
+        boolean delta = clock instanceof VectorClock && ((VectorClock) clock).isDelta();
+        boolean membership = message.getMembershipVersion() != 0;
+        String relayedBy = message.getRelayedBy();
+        out.put(VERSION);
+        out.put((byte) ((relay ? FLAG_RELAY : 0) | (delta ? FLAG_CLOCK_DELTA : 0)
+            | (membership ? FLAG_MEMBERSHIP : 0) | (relayedBy != null ? FLAG_RELAYED_BY : 0)));
+        out.put((byte) message.getType().ordinal());
+        writeVarLong(out, message.getTimestamp());
+        writeString(out, message.getId());
+        writeString(out, message.getSenderId());
+        writeString(out, message.getRecipientId());
+        writeString(out, message.getContent());
+
+        if (clock instanceof VectorClock) {
+            VectorClock vectorClock = (VectorClock) clock;
+            writeVarInt(out, vectorClock.entryCount());
+            for (int i = 0; i < vectorClock.entryCount(); i++) {
+                writeString(out, vectorClock.nodeIdAt(i));
+                writeVarInt(out, vectorClock.countAt(i));
+            }
+        } else if (clock == null) {
+            writeVarInt(out, 0);
+        } else {
+            writeVarInt(out, clock.size());
+            for (Map.Entry<String, Integer> entry : clock.entrySet()) {
+                writeString(out, entry.getKey());
+                writeVarInt(out, entry.getValue());
+            }
+        }
+        if (relay) {
+            out.put((byte) message.getDissemination().ordinal());
+            writeVarInt(out, message.getHops());
+        }
+        if (membership) {
+            writeVarLong(out, message.getMembershipVersion());
+        }
+        if (relayedBy != null) {
+            writeString(out, relayedBy);
+        }
+    }
+
+    public static Message fromBytes(byte[] bytes) throws IOException {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads one message from the buffer's position, accepting either the binary format
+     * or (if enabled) a legacy Java-serialized message occupying the rest of the buffer.
+     */
+    public static Message decode(ByteBuffer in) throws IOException {
+        return decode(in, false);
+    }
+
+    /**
+     * @param knownNodesOnly drop clock entries of node IDs without a {@link NodeIds}
+     *                       handle; for messages from the network, whose content must
+     *                       not grow the process-wide table
+     */
+    public static Message decode(ByteBuffer in, boolean knownNodesOnly) throws IOException {
+        if (in.remaining() >= 2 && in.get(in.position()) == LEGACY_MAGIC_0
+                && in.get(in.position() + 1) == LEGACY_MAGIC_1) {
+            Message message = decodeLegacy(in);
+            return knownNodesOnly ? withKnownNodes(message) : message;
+        }
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported message version: " + version);
+            }
+            byte flags = in.get();
+            if ((flags & ~KNOWN_FLAGS) != 0) {
+                throw new IOException("Unsupported message flags: " + flags);
+            }
+            int typeOrdinal = in.get() & 0xFF;
+            if (typeOrdinal >= TYPES.length) {
+                throw new IOException("Unknown message type: " + typeOrdinal);
+            }
+            long timestamp = readVarLong(in);
+            String id = readString(in, false);
+            String senderId = readString(in, true);
+            String recipientId = readString(in, true);
+            String content = readString(in, false);
+
+            int clockSize = readVarInt(in);
+            if (clockSize < 0 || clockSize > in.remaining()) {
+                throw new IOException("Invalid vector clock size: " + clockSize);
+            }
+            VectorClock clock = new VectorClock();
+            for (int i = 0; i < clockSize; i++) {
+                String nodeId = readString(in, true);
+                int count = readVarInt(in);
+                if (!knownNodesOnly || NodeIds.find(nodeId) >= 0) {
+                    clock.set(nodeId, count);
+                }
+            }
+            clock.setDelta((flags & FLAG_CLOCK_DELTA) != 0);
+            DisseminationMode dissemination = DisseminationMode.DIRECT;
+            int hops = 0;
+            if ((flags & FLAG_RELAY) != 0) {
+                int modeOrdinal = in.get() & 0xFF;
+                if (modeOrdinal >= MODES.length) {
+                    throw new IOException("Unknown dissemination mode: " + modeOrdinal);
+                }
+                dissemination = MODES[modeOrdinal];
+                hops = readVarInt(in);
+            }
+            long membershipVersion = (flags & FLAG_MEMBERSHIP) != 0 ? readVarLong(in) : 0;
+            String relayedBy = (flags & FLAG_RELAYED_BY) != 0 ? readString(in, false) : null;
+            return new Message(id, senderId, recipientId, content, timestamp, clock, TYPES[typeOrdinal],
+                dissemination, hops, membershipVersion, relayedBy);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message", e);
+        }
+    }
+
+    /** {@link #encodeFrame} into the calling thread's scratch buffer, as {@link #encodeReusable} does. */
+    public static ByteBuffer encodeFrameReusable(Message message, byte flags) {
+        ByteBuffer buffer = SCRATCH.get();
+        while (true) {
+            buffer.clear();
+            try {
+                encodeFrame(message, flags, buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                SCRATCH.set(buffer);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Writes a frame holding just this message at the buffer's position. */
+    public static void encodeFrame(Message message, byte flags, ByteBuffer out) {
+        out.put(FRAME_MARKER).put(flags).putShort((short) 1);
+        int start = out.position();
+        out.position(start + 2);
+        encode(message, out);
+        out.putShort(start, (short) (out.position() - start - 2));
+    }
+
+    public static boolean isFrame(ByteBuffer in) {
+        return in.remaining() >= FRAME_HEADER_SIZE && in.get(in.position()) == FRAME_MARKER;
+    }
+
+    /** Reads the frame header and passes every message in the frame to the sink; returns the frame flags. */
+    public static byte decodeFrame(ByteBuffer in, Consumer<Message> sink) throws IOException {
+        return decodeFrame(in, false, sink);
+    }
+
+    /** As {@link #decodeFrame(ByteBuffer, Consumer)}; see {@link #decode(ByteBuffer, boolean)}. */
+    public static byte decodeFrame(ByteBuffer in, boolean knownNodesOnly, Consumer<Message> sink)
+            throws IOException {
+        try {
+            in.get();
+            byte flags = in.get();
+            int count = in.getShort() & 0xFFFF;
+            int limit = in.limit();
+            for (int i = 0; i < count; i++) {
+                int length = in.getShort() & 0xFFFF;
+                if (length > in.remaining()) {
+                    throw new IOException("Truncated frame");
+                }
+                in.limit(in.position() + length);
+                Message message = decode(in, knownNodesOnly);
+                in.position(in.limit());
+                in.limit(limit);
+                sink.accept(message);
+            }
+            return flags;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame", e);
+        }
+    }
+
+    /** The message with its plain-map clock cut down to nodes that already have handles. */
+    private static Message withKnownNodes(Message message) {
+        Map<String, Integer> clock = message.getVectorClock();
+        if (clock == null || clock.isEmpty()) {
+            return message;
+        }
+        VectorClock known = new VectorClock();
+        for (Map.Entry<String, Integer> entry : clock.entrySet()) {
+            if (NodeIds.find(entry.getKey()) >= 0) {
+                known.set(entry.getKey(), entry.getValue());
+            }
+        }
+        return new Message(message.getId(), message.getSenderId(), message.getRecipientId(), message.getContent(),
+            message.getTimestamp(), known, message.getType(), message.getDissemination(), message.getHops(),
+            message.getMembershipVersion(), message.getRelayedBy());
+    }
+
+    private static byte[] toLegacyBytes(Message message) throws IOException {
+        Map<String, Integer> clock = message.getVectorClock();
+        if (clock != null && !(clock instanceof HashMap) && !(clock instanceof VectorClock)) {
+            // a receiver's filter only lets a HashMap through; VectorClock replaces itself with one
+            message = new Message(message.getId(), message.getSenderId(), message.getRecipientId(),
+                message.getContent(), message.getTimestamp(), new HashMap<>(clock), message.getType());
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(message);
+        oos.flush();
+        return baos.toByteArray();
+    }
+
+    private static Message decodeLegacy(ByteBuffer in) throws IOException {
+        if (!LEGACY_DECODE) {
+            throw new IOException("Legacy message format is disabled");
+        }
+        byte[] bytes = new byte[in.remaining()];
+        in.get(bytes);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            ois.setObjectInputFilter(LEGACY_FILTER);
+            return (Message) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid legacy message", e);
+        }
+    }
+
+    static void writeVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int readVarInt(ByteBuffer in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static long readVarLong(ByteBuffer in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    static void writeString(ByteBuffer out, String value) {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        if (isAscii(value)) {
+            int length = value.length();
+            writeVarInt(out, length + 1);
+            for (int i = 0; i < length; i++) {
+                out.put((byte) value.charAt(i));
+            }
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length + 1);
+            out.put(bytes);
+        }
+    }
+
+    static String readString(ByteBuffer in, boolean intern) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes;
+        int offset;
+        if (in.hasArray()) {
+            bytes = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + length);
+        } else {
+            bytes = STRING_SCRATCH.get();
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+                STRING_SCRATCH.set(bytes);
+            }
+            in.get(bytes, 0, length);
+            offset = 0;
+        }
+        return intern ? NODE_IDS.intern(bytes, offset, length)
+                      : new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Small lossy cache mapping UTF-8 bytes to a shared String so the handful of node IDs
+     * seen on every packet decode without allocating. Collisions simply replace the slot.
+     */
+    private static final class Interner {
+        private final Entry[] slots;
+        private final int mask;
+
+        Interner(int size) {
+            this.slots = new Entry[size];
+            this.mask = size - 1;
+        }
+
+        String intern(byte[] bytes, int offset, int length) {
+            int hash = 1;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            int index = (hash ^ (hash >>> 16)) & mask;
+            Entry entry = slots[index];
+            if (entry != null && entry.matches(bytes, offset, length)) {
+                return entry.value;
+            }
+            byte[] copy = new byte[length];
+            System.arraycopy(bytes, offset, copy, 0, length);
+            String value = new String(copy, StandardCharsets.UTF_8);
+            slots[index] = new Entry(copy, value);
+            return value;
+        }
+    }
+
+    private static final class Entry {
+        final byte[] bytes;
+        final String value;
+
+        Entry(byte[] bytes, String value) {
+            this.bytes = bytes;
+            this.value = value;
+        }
+
+        boolean matches(byte[] other, int offset, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != other[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
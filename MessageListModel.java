@@ -0,0 +1,100 @@
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.AbstractListModel;
+
+/**
+ * The messages shown for one chat, oldest first, holding at most a fixed number.
+ * Rows live in a ring, so adding at either end and dropping from the other end do not
+ * move the rest. Must only be used on the event dispatch thread.
+ */
+public class MessageListModel extends AbstractListModel<Message> {
+    private static final long serialVersionUID = 1L;
+
+    private final Message[] rows;
+    private int head;
+    private int size;
+
+    public MessageListModel(int capacity) {
+        this.rows = new Message[capacity];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Message getElementAt(int index) {
+        return rows[(head + index) % rows.length];
+    }
+
+    public int getCapacity() {
+        return rows.length;
+    }
+
+    /** Replaces all rows, keeping the newest if there are too many. */
+    public void setAll(List<Message> messages) {
+        clear();
+        append(messages);
+    }
+
+    public void clear() {
+        if (size > 0) {
+            int removed = size;
+            Arrays.fill(rows, null);
+            head = 0;
+            size = 0;
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+    }
+
+    /** Adds messages after the newest row, dropping the oldest; returns how many were dropped. */
+    public int append(List<Message> messages) {
+        int from = Math.max(0, messages.size() - rows.length);
+        int dropped = Math.max(0, size + messages.size() - from - rows.length);
+        if (dropped > 0) {
+            removeOldest(dropped);
+        }
+        int first = size;
+        for (int i = from; i < messages.size(); i++) {
+            rows[(head + size) % rows.length] = messages.get(i);
+            size++;
+        }
+        if (size > first) {
+            fireIntervalAdded(this, first, size - 1);
+        }
+        return dropped + from;
+    }
+
+    /** Adds messages before the oldest row, dropping the newest; returns how many were dropped. */
+    public int prepend(List<Message> messages) {
+        int count = Math.min(messages.size(), rows.length);
+        int dropped = Math.max(0, size + count - rows.length);
+        if (dropped > 0) {
+            for (int i = size - dropped; i < size; i++) {
+                rows[(head + i) % rows.length] = null;
+            }
+            size -= dropped;
+            fireIntervalRemoved(this, size, size + dropped - 1);
+        }
+        // the newest of the given messages are the ones next to the current oldest row
+        for (int i = messages.size() - 1; i >= messages.size() - count; i--) {
+            head = (head - 1 + rows.length) % rows.length;
+            rows[head] = messages.get(i);
+            size++;
+        }
+        if (count > 0) {
+            fireIntervalAdded(this, 0, count - 1);
+        }
+        return dropped;
+    }
+
+    private void removeOldest(int count) {
+        for (int i = 0; i < count; i++) {
+            rows[(head + i) % rows.length] = null;
+        }
+        head = (head + count) % rows.length;
+        size -= count;
+        fireIntervalRemoved(this, 0, count - 1);
+    }
+}
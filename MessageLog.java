@@ -0,0 +1,416 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only on-disk log of chat messages, so history survives restarts without being
+ * kept on the heap.
+ *
+ * The log is a directory of fixed-size segment files, each memory-mapped and named
+ * after the log position of its first byte. A record is
+ * <pre>
+ *   u32  length of the encoded message (0 marks the end of the segment's records)
+ *   u32  CRC-32C of the encoded message
+ *   ...  the message in {@link MessageCodec} format
+ * </pre>
+ * and is addressed by its position: the segment's base plus the record's offset in it.
+ *
+ * {@link #append} only encodes and queues the message; a single writer thread copies
+ * queued records into the mapped segment and forces it to disk at most every sync
+ * interval, so many appends share one fsync. Records that were queued or not yet
+ * forced when the process dies are lost. On open, the newest segment is scanned and
+ * the log is cut at the first record that is torn or fails its CRC; older segments
+ * were forced before the next one was started.
+ */
+public class MessageLog {
+    private static final Log LOG = Log.get("MessageLog");
+
+    private static final String SUFFIX = ".seg";
+    static final int RECORD_HEADER_SIZE = 8;
+    // wakes the writer on close
+    private static final Pending CLOSE = new Pending(null, null);
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long syncIntervalNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32C writeCrc = new CRC32C();
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    private Segment active;
+    // everything before this position is written and visible to readers
+    private volatile long end;
+    private volatile boolean closed;
+    private long lastSync = System.nanoTime();
+    private boolean dirty;
+    private volatile Listener listener;
+
+    private static final class Pending {
+        final byte[] bytes;
+        final Message message;
+
+        Pending(byte[] bytes, Message message) {
+            this.bytes = bytes;
+            this.message = message;
+        }
+    }
+
+    private static final class Segment {
+        final long base;
+        final MappedByteBuffer buffer;
+
+        Segment(long base, MappedByteBuffer buffer) {
+            this.base = base;
+            this.buffer = buffer;
+        }
+    }
+
+    /** Receives records during {@link #scan}; return false to stop. */
+    public interface Visitor {
+        boolean visit(long position, Message message);
+    }
+
+    /** Follows the writer, e.g. to index records; called on the writer thread. */
+    public interface Listener {
+        void written(long position, Message message);
+
+        /** Everything before the position has been forced to disk. */
+        void synced(long end);
+    }
+
+    /**
+     * Opens the log in the directory, recovering whatever a previous run left there. The
+     * writer thread comes from the given factory and runs once {@link #start} is called;
+     * appends made before that wait in the queue.
+     *
+     * @param syncIntervalMillis longest time a written record waits to be forced to disk;
+     *                           0 forces after every batch
+     */
+    public MessageLog(Path directory, int segmentBytes, long syncIntervalMillis, int queueCapacity,
+                      ThreadFactory threadFactory) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        Files.createDirectories(directory);
+        recover();
+        this.writer = threadFactory.newThread(this::writeLoop);
+        writer.setName("MessageLog-" + directory.getParent().getFileName());
+    }
+
+    /** Sets the listener; only before {@link #start}. */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    private void recover() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        bases.sort(null);
+        for (long base : bases) {
+            segments.put(base, map(base, Files.size(segmentFile(base))));
+        }
+        if (segments.isEmpty()) {
+            active = createSegment(0);
+            end = 0;
+            return;
+        }
+        active = segments.lastEntry().getValue();
+        int records = 0;
+        int offset = 0;
+        MappedByteBuffer buffer = active.buffer;
+        CRC32C crc = new CRC32C();
+        while (true) {
+            int length = recordLength(buffer, offset);
+            if (length <= 0) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.slice(offset + RECORD_HEADER_SIZE, length));
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            offset += RECORD_HEADER_SIZE + length;
+            records++;
+        }
+        if (clearTail(buffer, offset)) {
+            LOG.warn("Message log {} cut after torn or corrupt record at {}", directory, active.base + offset);
+        }
+        end = active.base + offset;
+        LOG.info("Recovered message log {}: {} segment(s), end at {}", directory, segments.size(), end);
+    }
+
+    /** Length of the record at the offset, or -1 if there is none or it cannot be complete. */
+    private static int recordLength(ByteBuffer buffer, int offset) {
+        if (offset + RECORD_HEADER_SIZE > buffer.capacity()) {
+            return -1;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > buffer.capacity() - offset - RECORD_HEADER_SIZE) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Zeroes everything after the last good record, so bytes from a torn write can never
+     * be read as records once new ones are appended before them. Returns whether there
+     * was anything to clear.
+     */
+    private static boolean clearTail(MappedByteBuffer buffer, int offset) {
+        int i = offset;
+        while (i < buffer.capacity() && buffer.get(i) == 0) {
+            i++;
+        }
+        if (i == buffer.capacity()) {
+            return false;
+        }
+        for (i = offset; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.force();
+        return true;
+    }
+
+    private Path segmentFile(long base) {
+        return directory.resolve(String.format("%020d%s", base, SUFFIX));
+    }
+
+    private Segment map(long base, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile(base),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(base, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    private Segment createSegment(long base) throws IOException {
+        Segment segment = map(base, segmentBytes);
+        synchronized (segments) {
+            segments.put(base, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Queues the message to be written. Blocks while the writer is a full queue behind,
+     * which only happens if the disk cannot keep up.
+     */
+    public void append(Message message) throws IOException {
+        if (closed) {
+            throw new IOException("Message log is closed");
+        }
+        byte[] bytes = MessageCodec.toBytes(message);
+        if (bytes.length + RECORD_HEADER_SIZE > segmentBytes) {
+            throw new IOException("Message of " + bytes.length + " bytes does not fit a log segment");
+        }
+        try {
+            queue.put(new Pending(bytes, message));
+            appended.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing for the message log", e);
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(syncIntervalNanos > 0 ? syncIntervalNanos : 100_000_000L,
+                    TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    for (Pending record : batch) {
+                        if (record != CLOSE) {
+                            write(record);
+                        }
+                    }
+                    batch.clear();
+                }
+                if (dirty && (closed || System.nanoTime() - lastSync >= syncIntervalNanos)) {
+                    sync();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Message log write failed", e);
+                batch.clear();
+            }
+        }
+        if (dirty) {
+            sync();
+        }
+    }
+
+    private void write(Pending pending) throws IOException {
+        byte[] record = pending.bytes;
+        int offset = (int) (end - active.base);
+        if (offset + RECORD_HEADER_SIZE + record.length > active.buffer.capacity()) {
+            // the rest of this segment stays zero, which readers take as its end
+            sync();
+            active = createSegment(active.base + active.buffer.capacity());
+            offset = 0;
+        }
+        writeCrc.reset();
+        writeCrc.update(record);
+        MappedByteBuffer buffer = active.buffer;
+        buffer.put(offset + RECORD_HEADER_SIZE, record);
+        buffer.putInt(offset + 4, (int) writeCrc.getValue());
+        buffer.putInt(offset, record.length);
+        end = active.base + offset + RECORD_HEADER_SIZE + record.length;
+        written.increment();
+        dirty = true;
+        Listener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.written(active.base + offset, pending.message);
+            } catch (RuntimeException e) {
+                LOG.warn("Message log listener failed", e);
+            }
+        }
+    }
+
+    private void sync() {
+        active.buffer.force();
+        syncs.increment();
+        lastSync = System.nanoTime();
+        dirty = false;
+        Listener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.synced(end);
+            } catch (RuntimeException e) {
+                LOG.warn("Message log listener failed", e);
+            }
+        }
+    }
+
+    /** Reads the record at a position returned by {@link #scan}. */
+    public Message read(long position) throws IOException {
+        if (position < 0 || position >= end) {
+            throw new IOException("No record at " + position);
+        }
+        Segment segment = segmentAt(position);
+        ByteBuffer buffer = segment.buffer;
+        int offset = (int) (position - segment.base);
+        int length = recordLength(buffer, offset);
+        if (length <= 0) {
+            throw new IOException("No record at " + position);
+        }
+        return MessageCodec.decode(buffer.slice(offset + RECORD_HEADER_SIZE, length));
+    }
+
+    /**
+     * Passes records in log order, starting at the given position, to the visitor until
+     * it returns false or the end of the log is reached. Returns the position of the
+     * first record not visited.
+     */
+    public long scan(long from, Visitor visitor) throws IOException {
+        long position = Math.max(from, getStartPosition());
+        long limit = end;
+        while (position < limit) {
+            Segment segment = segmentAt(position);
+            ByteBuffer buffer = segment.buffer;
+            int offset = (int) (position - segment.base);
+            int length = recordLength(buffer, offset);
+            if (length <= 0) {
+                // unused tail of a full segment
+                position = segment.base + buffer.capacity();
+                continue;
+            }
+            Message message = MessageCodec.decode(buffer.slice(offset + RECORD_HEADER_SIZE, length));
+            if (!visitor.visit(position, message)) {
+                return position;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private Segment segmentAt(long position) throws IOException {
+        Map.Entry<Long, Segment> entry;
+        synchronized (segments) {
+            entry = segments.floorEntry(position);
+        }
+        if (entry == null) {
+            throw new IOException("Position " + position + " is before the start of the log");
+        }
+        return entry.getValue();
+    }
+
+    public long getStartPosition() {
+        synchronized (segments) {
+            return segments.firstKey();
+        }
+    }
+
+    /** Position after the last written record. */
+    public long getEndPosition() {
+        return end;
+    }
+
+    public int getSegmentCount() {
+        synchronized (segments) {
+            return segments.size();
+        }
+    }
+
+    /** Records queued but not written yet. */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public long getAppendedCount() { return appended.sum(); }
+    public long getWrittenCount() { return written.sum(); }
+    public long getSyncCount() { return syncs.sum(); }
+
+    /** Writes and forces everything queued so far, then stops the writer. */
+    public void close(long timeout, TimeUnit unit) {
+        closed = true;
+        try {
+            queue.put(CLOSE);
+            writer.join(unit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            LOG.warn("Message log writer still busy with {} records", queue.size());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "log[segments=" + getSegmentCount() + ", end=" + end + ", pending=" + getPendingCount()
+            + ", written=" + getWrittenCount() + ", syncs=" + getSyncCount() + "]";
+    }
+}
@@ -3,5 +3,10 @@ public enum MessageType {
     GROUP_CHAT,
     HEARTBEAT,
     JOIN_GROUP,
-    GROUP_INFO
+    GROUP_INFO,
+    // history anti-entropy between room members; see HistorySync
+    SYNC_SUMMARY,
+    SYNC_KEYS,
+    SYNC_REQUEST,
+    SYNC_DATA
 }
\ No newline at end of file
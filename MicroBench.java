@@ -0,0 +1,393 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Microbenchmarks for the per-message hot paths: the wire codec, packet crypto, group
+ * fan-out, vector clock merges and the dispatch pipeline.
+ *
+ * Each benchmark runs warm-up iterations, then measured iterations of a fixed time,
+ * and reports the average time per operation with its spread over the iterations and
+ * the bytes allocated per operation by the measuring thread. Results can be saved and
+ * later compared against, so a build that got slower or allocates more fails:
+ * <pre>
+ *   java MicroBench [filter] [-save file] [-baseline file] [-tolerance percent]
+ * </pre>
+ * The filter is a substring of the benchmark name and parameters, e.g. "codec" or
+ * "room=512". Iteration counts and length are set with chat.bench.warmup,
+ * chat.bench.iterations and chat.bench.timeMs.
+ */
+public class MicroBench {
+    private static final int WARMUP = Integer.getInteger("chat.bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("chat.bench.iterations", 5);
+    private static final long ITERATION_MILLIS = Long.getLong("chat.bench.timeMs", 500);
+    // operations between clock reads
+    private static final int BATCH = 64;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // results are folded in here so the JIT cannot drop the work
+    private static volatile long sink;
+
+    /** One operation of a benchmark. */
+    interface Operation {
+        long run() throws Exception;
+    }
+
+    /** Prepares an operation for one parameter combination and releases it afterwards. */
+    interface Fixture {
+        Operation setUp() throws Exception;
+
+        default void tearDown() throws Exception {
+        }
+    }
+
+    private static final class Result {
+        final String name;
+        final String params;
+        final double nanosPerOp;
+        final double error;
+        final double bytesPerOp;
+
+        Result(String name, String params, double nanosPerOp, double error, double bytesPerOp) {
+            this.name = name;
+            this.params = params;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        String key() {
+            return name + " " + params;
+        }
+    }
+
+    private final String filter;
+    private final List<Result> results = new ArrayList<>();
+
+    private MicroBench(String filter) {
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = "";
+        Path save = null;
+        Path baseline = null;
+        double tolerance = 10;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-save") && i + 1 < args.length) {
+                save = Paths.get(args[++i]);
+            } else if (args[i].equals("-baseline") && i + 1 < args.length) {
+                baseline = Paths.get(args[++i]);
+            } else if (args[i].equals("-tolerance") && i + 1 < args.length) {
+                tolerance = Double.parseDouble(args[++i]);
+            } else {
+                filter = args[i];
+            }
+        }
+
+        MicroBench bench = new MicroBench(filter);
+        System.out.printf("%-22s %-28s %12s %10s %12s %10s%n",
+            "Benchmark", "Params", "ns/op", "error", "B/op", "MB/s");
+        bench.codec();
+        bench.crypto();
+        bench.fanout();
+        bench.clock();
+        bench.dispatch();
+
+        if (save != null) {
+            bench.save(save);
+        }
+        if (baseline != null && !bench.compare(baseline, tolerance)) {
+            System.exit(1);
+        }
+    }
+
+    private void codec() throws Exception {
+        for (int payload : new int[] {16, 256, 4096}) {
+            for (int clockWidth : new int[] {1, 16, 256}) {
+                String params = "payload=" + payload + " clock=" + clockWidth;
+                Message message = message(payload, clockWidth);
+                byte[] bytes = MessageCodec.toBytes(message);
+                ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 64);
+                run("codec.toBytes", params, () -> () -> MessageCodec.toBytes(message).length);
+                run("codec.encode", params, () -> () -> {
+                    buffer.clear();
+                    MessageCodec.encode(message, buffer);
+                    return buffer.position();
+                });
+                run("codec.fromBytes", params, () -> () -> MessageCodec.fromBytes(bytes).getTimestamp());
+            }
+        }
+    }
+
+    private void crypto() throws Exception {
+        PacketCrypto crypto = new PacketCrypto(new SecretKeySpec(new byte[16], "AES"), true);
+        for (PacketCrypto.Mode mode : PacketCrypto.Mode.values()) {
+            for (int payload : new int[] {64, 1400}) {
+                String params = "mode=" + mode.name().toLowerCase() + " payload=" + payload;
+                ByteBuffer plaintext = ByteBuffer.wrap(new byte[payload]);
+                ByteBuffer sealed = ByteBuffer.allocate(PacketCrypto.maxSealedSize(payload));
+                ByteBuffer opened = ByteBuffer.allocate(payload + 64);
+                crypto.seal(plaintext.duplicate(), sealed, mode);
+                sealed.flip();
+                ByteBuffer out = ByteBuffer.allocate(sealed.capacity());
+                run("crypto.seal", params, () -> () -> {
+                    out.clear();
+                    crypto.seal(plaintext.duplicate(), out, mode);
+                    return out.position();
+                });
+                run("crypto.open", params, () -> () -> {
+                    opened.clear();
+                    crypto.open(sealed.duplicate(), opened);
+                    return opened.position();
+                });
+            }
+        }
+    }
+
+    private void fanout() throws Exception {
+        PacketCrypto crypto = new PacketCrypto(new SecretKeySpec(new byte[16], "AES"), true);
+        BufferPool pool = new BufferPool(2048, 16, false);
+        Transport transport = new Transport() {
+            public void start(Receiver receiver, ThreadFactory threads) {
+            }
+
+            public void send(ByteBuffer data, InetSocketAddress target) {
+            }
+
+            public void release(ByteBuffer buffer) {
+                pool.release(buffer);
+            }
+
+            public ByteBuffer acquire(int capacity) {
+                return pool.acquire(capacity);
+            }
+
+            public void close() {
+            }
+        };
+        for (int roomSize : new int[] {8, 64, 512}) {
+            for (int payload : new int[] {64, 1024}) {
+                String params = "room=" + roomSize + " payload=" + payload;
+                List<PeerInfo> recipients = new ArrayList<>();
+                for (int i = 0; i < roomSize; i++) {
+                    PeerInfo peer = new PeerInfo("member" + i, InetAddress.getLoopbackAddress(), 20000 + i,
+                        NodeStatus.ACTIVE);
+                    peer.setCryptoMode(PacketCrypto.Mode.GCM);
+                    recipients.add(peer);
+                }
+                Message message = message(payload, 16);
+                long[] sent = {0};
+                ExecutorService executor = Executors.newSingleThreadExecutor();
+                // sequential, so every allocation lands on the measuring thread
+                FanoutEngine fanout = new FanoutEngine(transport, (peer, packet) -> sent[0] += packet.remaining(),
+                    crypto, executor, Integer.MAX_VALUE, 16);
+                run("fanout.send", params, new Fixture() {
+                    public Operation setUp() {
+                        return () -> fanout.send(message, MessageCodec.FRAME_FLAG_GCM, recipients)
+                            .getDeliveredCount() + sent[0];
+                    }
+
+                    public void tearDown() {
+                        executor.shutdownNow();
+                    }
+                });
+            }
+        }
+    }
+
+    private void clock() throws Exception {
+        for (int width : new int[] {16, 256, 4096}) {
+            VectorClock base = clock(width, 0);
+            VectorClock full = clock(width, 1);
+            VectorClock delta = new VectorClock();
+            for (int i = 0; i < 4; i++) {
+                delta.set("node" + (i * width / 4), width + i);
+            }
+            run("clock.mergeFull", "width=" + width, () -> () -> {
+                VectorClock clock = base.copy();
+                clock.mergeMax(full);
+                return clock.entryCount();
+            });
+            run("clock.mergeDelta", "width=" + width, () -> () -> {
+                VectorClock clock = base.copy();
+                clock.mergeMax(delta);
+                return clock.entryCount();
+            });
+        }
+    }
+
+    private void dispatch() throws Exception {
+        for (int lanes : new int[] {1, 4}) {
+            Message message = message(64, 1);
+            String[] senders = new String[64];
+            for (int i = 0; i < senders.length; i++) {
+                senders[i] = "sender" + i;
+            }
+            run("dispatch.submit", "lanes=" + lanes, new Fixture() {
+                PipelineStage<Message> stage;
+
+                public Operation setUp() {
+                    stage = new PipelineStage<>("Bench", lanes, 1024, PipelineStage.DropPolicy.BLOCK,
+                        m -> sink += m.getTimestamp(), null);
+                    stage.start();
+                    long[] next = {0};
+                    return () -> stage.submit(senders[(int) (next[0]++ & 63)], message) ? 1 : 0;
+                }
+
+                public void tearDown() {
+                    stage.shutdown();
+                }
+            });
+        }
+    }
+
+    private static Message message(int payload, int clockWidth) {
+        char[] content = new char[payload];
+        Arrays.fill(content, 'x');
+        return new Message("3f2c9a1e-5b7d-4e8f-9a0b-1c2d3e4f5a6b", "sender", "room", new String(content),
+            System.currentTimeMillis(), clock(clockWidth, 1), MessageType.GROUP_CHAT);
+    }
+
+    private static VectorClock clock(int width, int offset) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < width; i++) {
+            counts.put("node" + i, i + offset);
+        }
+        return VectorClock.from(counts);
+    }
+
+    private void run(String name, String params, Fixture fixture) throws Exception {
+        if (!(name + " " + params).contains(filter)) {
+            return;
+        }
+        Operation operation = fixture.setUp();
+        try {
+            for (int i = 0; i < WARMUP; i++) {
+                iteration(operation);
+            }
+            long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+            double[] nanos = new double[ITERATIONS];
+            long operations = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long[] measured = iteration(operation);
+                nanos[i] = (double) measured[1] / measured[0];
+                operations += measured[0];
+            }
+            double bytesPerOp = (double) (THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore) / operations;
+            report(new Result(name, params, mean(nanos), deviation(nanos), bytesPerOp));
+        } finally {
+            fixture.tearDown();
+        }
+    }
+
+    /** Runs the operation for one iteration's time; returns the operation count and nanoseconds. */
+    private static long[] iteration(Operation operation) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ITERATION_MILLIS);
+        long start = System.nanoTime();
+        long count = 0;
+        long result = 0;
+        long now;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                result += operation.run();
+            }
+            count += BATCH;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += result;
+        return new long[] {count, now - start};
+    }
+
+    private void report(Result result) {
+        results.add(result);
+        double megabytesPerSecond = result.bytesPerOp / result.nanosPerOp * 1e9 / (1 << 20);
+        System.out.printf("%-22s %-28s %12.1f %10.1f %12.1f %10.1f%n", result.name, result.params,
+            result.nanosPerOp, result.error, result.bytesPerOp, megabytesPerSecond);
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static double deviation(double[] values) {
+        double mean = mean(values);
+        double sum = 0;
+        for (double value : values) {
+            sum += (value - mean) * (value - mean);
+        }
+        return values.length < 2 ? 0 : Math.sqrt(sum / (values.length - 1));
+    }
+
+    /** Writes one tab-separated line per result: name, params, ns/op, B/op. */
+    private void save(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Result result : results) {
+            lines.add(result.name + "\t" + result.params + "\t" + result.nanosPerOp + "\t" + result.bytesPerOp);
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        System.out.println("Saved " + lines.size() + " results to " + file);
+    }
+
+    /**
+     * Compares with saved results; a benchmark regressed if it is more than the tolerance
+     * slower, or allocates more than the tolerance plus a few bytes more per operation.
+     */
+    private boolean compare(Path file, double tolerance) throws IOException {
+        Map<String, double[]> baseline = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length == 4) {
+                baseline.put(fields[0] + " " + fields[1],
+                    new double[] {Double.parseDouble(fields[2]), Double.parseDouble(fields[3])});
+            }
+        }
+        double limit = 1 + tolerance / 100;
+        List<String> regressions = new ArrayList<>();
+        for (Result result : results) {
+            double[] previous = baseline.get(result.key());
+            if (previous == null) {
+                continue;
+            }
+            if (result.nanosPerOp > previous[0] * limit) {
+                regressions.add(String.format("%s: %.1f ns/op, was %.1f", result.key(), result.nanosPerOp,
+                    previous[0]));
+            }
+            if (result.bytesPerOp > previous[1] * limit + 8) {
+                regressions.add(String.format("%s: %.1f B/op, was %.1f", result.key(), result.bytesPerOp,
+                    previous[1]));
+            }
+        }
+        if (regressions.isEmpty()) {
+            System.out.println("No regressions against " + file + " (tolerance " + tolerance + "%)");
+            return true;
+        }
+        System.out.println("Regressions against " + file + " (tolerance " + tolerance + "%):");
+        for (String regression : regressions) {
+            System.out.println("  " + regression);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Non-blocking transport: every bound port and joined multicast group is a
+ * {@link DatagramChannel} served by a single selector thread. Datagrams are received
+ * straight into direct buffers of the pool's largest class, which go to the receiver
+ * as they are. When the pool has none left, because that many packets are still
+ * waiting to be decoded, a datagram is copied into a heap buffer of exactly its size
+ * instead, so a burst cannot pin more than the pool's limit off-heap.
+ */
+public class NioDatagramTransport implements Transport {
+    private static final Log LOG = Log.get("NioDatagramTransport");
+
+    private static final int MAX_PACKET_SIZE = 65507;
+    private static final int SEND_ATTEMPTS = 20;
+    private static final long SEND_RETRY_NANOS = 50_000;
+
+    private final Selector selector;
+    private final DatagramChannel primary;
+    private final BufferPool pool;
+    // only touched by the selector thread: the copy fallback's buffer, and a pooled
+    // buffer left over from a receive that found nothing
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private ByteBuffer spare;
+    private final List<DatagramChannel> channels = new CopyOnWriteArrayList<>();
+    private final List<MembershipKey> memberships = new CopyOnWriteArrayList<>();
+    private final Queue<DatagramChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private volatile Receiver receiver;
+    private volatile boolean running;
+
+    public NioDatagramTransport(int port, BufferPool pool) throws IOException {
+        this.pool = pool;
+        this.selector = Selector.open();
+        this.primary = openChannel(new InetSocketAddress(port), false);
+    }
+
+    /** Additionally listens on another local port; sends still leave from the primary port. */
+    public void bind(int port) throws IOException {
+        openChannel(new InetSocketAddress(port), false);
+    }
+
+    /** Listens for datagrams sent to a multicast group on the given port. */
+    public void joinGroup(InetAddress group, int port, NetworkInterface networkInterface) throws IOException {
+        DatagramChannel channel = openChannel(new InetSocketAddress(port), true);
+        memberships.add(channel.join(group, networkInterface));
+    }
+
+    private DatagramChannel openChannel(SocketAddress local, boolean reuseAddress) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            if (reuseAddress) {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            }
+            channel.bind(local);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channels.add(channel);
+        pendingRegistrations.add(channel);
+        selector.wakeup();
+        return channel;
+    }
+
+    @Override
+    public void start(Receiver receiver, ThreadFactory threads) {
+        this.receiver = receiver;
+        this.running = true;
+        Thread thread = threads.newThread(this::selectLoop);
+        thread.setName("TransportSelector");
+        thread.start();
+    }
+
+    private void selectLoop() {
+        while (running) {
+            try {
+                selector.select();
+                DatagramChannel channel;
+                while ((channel = pendingRegistrations.poll()) != null) {
+                    channel.register(selector, SelectionKey.OP_READ);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drain((DatagramChannel) key.channel());
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    LOG.warn("Receive failed", e);
+                }
+            }
+        }
+        pool.release(spare);
+        spare = null;
+    }
+
+    private void drain(DatagramChannel channel) throws IOException {
+        while (true) {
+            ByteBuffer buffer = spare != null ? spare : pool.tryAcquire(MAX_PACKET_SIZE);
+            spare = null;
+            if (buffer == null) {
+                buffer = receiveBuffer;
+                buffer.clear();
+            }
+            SocketAddress source = channel.receive(buffer);
+            if (source == null) {
+                if (buffer != receiveBuffer) {
+                    spare = buffer;
+                }
+                return;
+            }
+            buffer.flip();
+            if (buffer == receiveBuffer) {
+                ByteBuffer packet = ByteBuffer.allocate(buffer.remaining());
+                packet.put(buffer).flip();
+                buffer = packet;
+            }
+            receiver.onPacket(buffer, (InetSocketAddress) source);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress target) throws IOException {
+        // a non-blocking send returns 0 when the socket buffer is full; back off briefly
+        for (int attempt = 0; attempt < SEND_ATTEMPTS; attempt++) {
+            if (primary.send(data, target) > 0) {
+                return;
+            }
+            LockSupport.parkNanos(SEND_RETRY_NANOS);
+        }
+        throw new IOException("Send buffer full, dropped datagram to " + target);
+    }
+
+    @Override
+    public ByteBuffer acquire(int capacity) {
+        return pool.acquire(capacity);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (MembershipKey membership : memberships) {
+            membership.drop();
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -1,58 +1,213 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
-import javax.swing.SwingUtilities;
 
 import java.time.Instant;
 
 public class Node {
-    private static final long HEARTBEAT_INTERVAL = 5000;
-    private static final long SUSPECTED_TIMEOUT = 15000;
+    private static final long HEARTBEAT_INTERVAL = Long.getLong("chat.heartbeat.intervalMs", 1000);
+    private static final long HEALTH_CHECK_INTERVAL = Long.getLong("chat.health.checkIntervalMs", 250);
+    private static final long OFFLINE_RETRY_INTERVAL = Long.getLong("chat.offline.retryMs", 2000);
+    // INACTIVE peers are only probed on every Nth heartbeat so they can come back
+    private static final int INACTIVE_PROBE_EVERY = Integer.getInteger("chat.heartbeat.inactiveProbeEvery", 5);
+    // Phi accrual failure detection; see PhiAccrualFailureDetector
+    private static final double SUSPECT_PHI = Double.parseDouble(System.getProperty("chat.fd.suspectPhi", "8"));
+    private static final double INACTIVE_PHI = Double.parseDouble(System.getProperty("chat.fd.inactivePhi", "16"));
+    private static final int FD_WINDOW = Integer.getInteger("chat.fd.window", 100);
+    private static final long FD_MIN_STD_DEVIATION = Long.getLong("chat.fd.minStdDeviationMs", 200);
+    private static final long FD_ACCEPTABLE_PAUSE = Long.getLong("chat.fd.acceptablePauseMs", 1000);
     private static final String ENCRYPTION_KEY = "MySecretKey12345";
+    // GCM is used towards peers that advertise it; ECB stays accepted until every node is upgraded
+    private static final PacketCrypto.Mode PREFERRED_CRYPTO =
+        PacketCrypto.Mode.valueOf(System.getProperty("chat.crypto.mode", "gcm").toUpperCase());
+    private static final boolean ACCEPT_ECB =
+        Boolean.parseBoolean(System.getProperty("chat.crypto.acceptEcb", "true"));
+    private static final int MAX_PACKET_SIZE = 65507;
+    private static final String TRANSPORT = System.getProperty("chat.transport", "nio");
+    // pooled send buffers, each large enough for one sealed MTU-sized frame
+    private static final int SEND_BUFFERS = Integer.getInteger("chat.transport.buffers", 256);
+    // pooled receive buffers, each large enough for any datagram; packets arriving while
+    // all of them wait to be decoded are copied instead
+    private static final int RECEIVE_BUFFERS = Integer.getInteger("chat.transport.receiveBuffers", 64);
+    private static final int DECODE_THREADS =
+        Integer.getInteger("chat.pipeline.decodeThreads", Runtime.getRuntime().availableProcessors());
+    private static final int DISPATCH_THREADS = Integer.getInteger("chat.pipeline.dispatchThreads", 4);
+    // Virtual lanes are cheap, so senders are spread over many more of them; the total
+    // queue capacity stays that of the platform lanes
+    private static final int VIRTUAL_DISPATCH_LANES = Integer.getInteger("chat.pipeline.virtualDispatchLanes", 64);
+    private static final long SHUTDOWN_TIMEOUT = Long.getLong("chat.shutdown.timeoutMs", 2000);
+    // Threads for work that may block on files, kept off the shared timer's few workers
+    private static final int BACKGROUND_THREADS = Integer.getInteger("chat.background.threads", 2);
+    // Acked, retransmitted delivery towards peers that advertise it; see ReliableChannel
+    private static final boolean RELIABLE = Boolean.parseBoolean(System.getProperty("chat.rel.enabled", "true"));
+    private static final String CAPABILITY_RELIABLE = "rel";
+    private static final String DATA_DIR = System.getProperty("chat.data.dir", "data");
+    private static final boolean OFFLINE_SYNC = Boolean.getBoolean("chat.offline.sync");
+    private static final int OFFLINE_LIMIT = Integer.getInteger("chat.offline.maxPerPeer", 1000);
+    // Message history on disk; see MessageLog
+    private static final int LOG_SEGMENT_BYTES = Integer.getInteger("chat.log.segmentMb", 16) << 20;
+    private static final long LOG_SYNC_INTERVAL = Long.getLong("chat.log.syncIntervalMs", 200);
+    private static final int LOG_QUEUE_CAPACITY = Integer.getInteger("chat.log.queueCapacity", 8192);
+    // Room history is reconciled with other members on join, on reconnect and periodically; see HistorySync
+    private static final boolean HISTORY_SYNC = Boolean.parseBoolean(System.getProperty("chat.sync.enabled", "true"));
+    private static final String CAPABILITY_SYNC = "sync";
+    private static final long SYNC_INTERVAL = Long.getLong("chat.sync.intervalMs", 60000);
+    private static final int SYNC_LEAF_SIZE = Integer.getInteger("chat.sync.leafSize", 16);
+    private static final int SYNC_BATCH_SIZE = Integer.getInteger("chat.sync.batchSize", 64);
+    // Causal hold-back buffer limits; see CausalDelivery. Enough room for a full
+    // reliability window of small messages queued behind one lost frame
+    private static final int CAUSAL_MAX_HELD = Integer.getInteger("chat.causal.maxHeld", 1024);
+    private static final long CAUSAL_MAX_WAIT = Long.getLong("chat.causal.maxWaitMs", 5000);
+    private static final long CAUSAL_CHECK_INTERVAL = Long.getLong("chat.causal.checkIntervalMs", 100);
+    // Stamps are deltas against the previous one, with a full clock this often; legacy
+    // serialization cannot mark deltas, so it always gets the full clock
+    private static final int CLOCK_FULL_EVERY =
+        MessageCodec.LEGACY_ENCODE ? 1 : Integer.getInteger("chat.clock.fullEvery", 32);
+    private static final int STAGE_CAPACITY = Integer.getInteger("chat.pipeline.queueCapacity", 1024);
+    // Decode drops rather than stalling the socket; dispatch pushes back into the decode workers
+    private static final PipelineStage.DropPolicy DECODE_DROP_POLICY = PipelineStage.DropPolicy.valueOf(
+        System.getProperty("chat.pipeline.decodeDropPolicy", "drop_newest").toUpperCase());
+    // Outgoing messages to one peer are coalesced into MTU-sized frames within this window
+    private static final long BATCH_WINDOW_MICROS =
+        (long) (Double.parseDouble(System.getProperty("chat.batch.windowMs", "2")) * 1000);
+    private static final int MAX_FRAME_BYTES =
+        Integer.getInteger("chat.batch.mtu", 1400) - 48 - ReliableChannel.HEADER_SIZE;
+    // Rooms at least this large are fanned out from several threads
+    private static final int FANOUT_PARALLEL_THRESHOLD = Integer.getInteger("chat.fanout.parallelThreshold", 32);
+    private static final int FANOUT_CHUNK_SIZE = Integer.getInteger("chat.fanout.chunkSize", 16);
+    // Relay fan-out for TREE and GOSSIP rooms; a gossip fanout of 0 sizes itself from the room
+    private static final int TREE_FANOUT = Integer.getInteger("chat.tree.fanout", 4);
+    private static final int GOSSIP_FANOUT = Integer.getInteger("chat.gossip.fanout", 0);
+    private static final int DEDUP_WINDOW = Integer.getInteger("chat.dedup.window", 4096);
+    private static final PipelineStage.DropPolicy DISPATCH_DROP_POLICY = PipelineStage.DropPolicy.valueOf(
+        System.getProperty("chat.pipeline.dispatchDropPolicy", "block").toUpperCase());
 
     private final String nodeId;
+    private final int handle;
     private final int port;
-    private ChatGUI gui;
+    private final Log log;
+    private final ServiceScope services;
+    private final CopyOnWriteArrayList<NodeListener> listeners = new CopyOnWriteArrayList<>();
     
-    private final Map<String, PeerInfo> peers;
-    private final Map<String, Integer> vectorClock;
-    private final PriorityBlockingQueue<Message> messageQueue;
-    private final List<Message> messageLog;
+    private final PeerRegistry peers;
+    private final CausalDelivery causalDelivery;
+    private final MessageLog messageLog;
+    private final HistoryStore history;
+    private final HistorySync historySync;
     private final Map<String, ChatRoom> chatRooms;
-    private final Map<String, Long> lastHeartbeat;
-    private final Map<String, Integer> messageCount;
-    private final Queue<Message> offlineMessages;
+    private final OfflineQueue offlineQueue;
 
-    private final SecretKey encryptionKey;
-    private boolean isRunning;
-    private DatagramSocket socket;
+    private final PacketCrypto packetCrypto;
+    private final PipelineStage<Inbound> decodeStage;
+    private final PipelineStage<Message> dispatchStage;
+    private final Map<String, OutboundBatcher> batchers;
+    private final Map<InetSocketAddress, ReliableChannel> channels;
+    private final TimerWheel timer;
+    private final Map<String, TimerWheel.Timeout> heartbeatTimers;
+    private final List<TimerWheel.Timeout> serviceTimers;
+    private final AtomicLong heartbeatSequence = new AtomicLong();
+    private final ExecutorService fanoutExecutor;
+    private final ExecutorService backgroundExecutor;
+    private FanoutEngine fanout;
+    private final RecentIdSet seenGroupMessages;
+    // per room, the newest membership version already asked of its admin
+    private final Map<String, Long> membershipRequested = new ConcurrentHashMap<>();
+    private final LongAdder packetsSent = new LongAdder();
+    // null unless chat.metrics.enabled is set, so the hot paths skip it with one check
+    private final NodeMetrics metrics;
+    private volatile Consumer<Message> deliveryObserver;
+    private volatile boolean isRunning;
+    private Transport transport;
+
+    private static final int[] NO_TARGETS = new int[0];
+
+    // Decrypted packets are decoded straight out of this per-thread buffer
+    private static final ThreadLocal<ByteBuffer> PLAINTEXT =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_PACKET_SIZE));
+
+    private static final class Inbound {
+        final ByteBuffer data;
+        final InetSocketAddress source;
+        final long receivedAt;
+
+        Inbound(ByteBuffer data, InetSocketAddress source, long receivedAt) {
+            this.data = data;
+            this.source = source;
+            this.receivedAt = receivedAt;
+        }
+    }
 
     public Node(String nodeId, int port) throws Exception {
+        this(nodeId, port, ExecutionModel.configured());
+    }
+
+    public Node(String nodeId, int port, ExecutionModel executionModel) throws Exception {
         this.nodeId = nodeId;
+        this.handle = NodeIds.handle(nodeId);
         this.port = port;
+        this.log = Log.get("Node", nodeId);
+        this.services = new ServiceScope(nodeId, executionModel);
         
-        this.peers = new ConcurrentHashMap<>();
-        this.vectorClock = new ConcurrentHashMap<>();
-        this.messageQueue = new PriorityBlockingQueue<>(11, 
-            Comparator.comparingLong(Message::getTimestamp));
-        this.messageLog = Collections.synchronizedList(new ArrayList<>());
+        this.peers = new PeerRegistry();
+        this.causalDelivery = new CausalDelivery(nodeId, CAUSAL_MAX_HELD, CAUSAL_MAX_WAIT, CLOCK_FULL_EVERY,
+            this::deliver);
+        this.messageLog = new MessageLog(Paths.get(DATA_DIR, nodeId, "log"), LOG_SEGMENT_BYTES,
+            LOG_SYNC_INTERVAL, LOG_QUEUE_CAPACITY, services);
+        this.history = new HistoryStore(Paths.get(DATA_DIR, nodeId, "history"), nodeId, messageLog);
+        messageLog.start();
+        this.historySync = new HistorySync(nodeId, history, this::sendSyncMessage, this::sharesRoom,
+            this::backfill, SYNC_LEAF_SIZE, SYNC_BATCH_SIZE);
         this.chatRooms = new ConcurrentHashMap<>();
-        this.lastHeartbeat = new ConcurrentHashMap<>();
-        this.messageCount = new ConcurrentHashMap<>();
-        this.offlineMessages = new ConcurrentLinkedQueue<>();
+        this.offlineQueue = new OfflineQueue(Paths.get(DATA_DIR, nodeId, "offline"), OFFLINE_SYNC, OFFLINE_LIMIT);
+        this.batchers = new ConcurrentHashMap<>();
+        this.channels = new ConcurrentHashMap<>();
+        this.seenGroupMessages = new RecentIdSet(DEDUP_WINDOW);
+        this.timer = TimerWheel.shared();
+        this.heartbeatTimers = new ConcurrentHashMap<>();
+        this.serviceTimers = new CopyOnWriteArrayList<>();
+        this.fanoutExecutor = services.newTaskExecutor("Fanout", Runtime.getRuntime().availableProcessors());
+        this.backgroundExecutor = services.newTaskExecutor("Background", BACKGROUND_THREADS);
 
         byte[] keyBytes = ENCRYPTION_KEY.getBytes("UTF-8");
         MessageDigest sha = MessageDigest.getInstance("SHA-1");
         keyBytes = sha.digest(keyBytes);
         keyBytes = Arrays.copyOf(keyBytes, 16);
-        this.encryptionKey = new SecretKeySpec(keyBytes, "AES");
+        this.packetCrypto = new PacketCrypto(new SecretKeySpec(keyBytes, "AES"), ACCEPT_ECB);
+
+        // receive -> decrypt/decode (keyed by source address) -> dispatch (keyed by sender)
+        this.decodeStage = new PipelineStage<>("Decode", DECODE_THREADS, STAGE_CAPACITY,
+            DECODE_DROP_POLICY, this::decodePacket, packet -> transport.release(packet.data), services);
+        int dispatchLanes = services.getModel() == ExecutionModel.VIRTUAL ? VIRTUAL_DISPATCH_LANES : DISPATCH_THREADS;
+        this.dispatchStage = new PipelineStage<>("Dispatch", dispatchLanes,
+            Math.max(64, STAGE_CAPACITY * DISPATCH_THREADS / dispatchLanes),
+            DISPATCH_DROP_POLICY, this::handleMessage, null, services);
+        this.metrics = NodeMetrics.ENABLED ? new NodeMetrics(nodeId, this::channelOf) : null;
+        if (metrics != null) {
+            dispatchStage.setWaitTimeHistogram(metrics.getDecodeToDispatch());
+        }
         
         this.isRunning = true;
-        initializeSocket();
+        try {
+            initializeSocket();
+        } catch (IOException e) {
+            messageLog.close(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            history.close();
+            throw e;
+        }
+        this.fanout = new FanoutEngine(transport, (peer, packet) -> {
+                if (!sendPacket(peer, packet, true)) {
+                    throw new IOException("Send backlog to " + peer.getPeerId() + " is full");
+                }
+            }, packetCrypto, fanoutExecutor, FANOUT_PARALLEL_THRESHOLD, FANOUT_CHUNK_SIZE);
         startServices();
     }
 
@@ -60,64 +215,207 @@ public class Node {
         return nodeId;
     }
 
-    public void setGUI(ChatGUI gui) {
-        this.gui = gui;
+    /** Threads owned by this node; other components running on its behalf start theirs here. */
+    public ServiceScope getServices() {
+        return services;
+    }
+
+    /** Registers for what this node has to show or report; see {@link NodeListener}. Idempotent. */
+    public void addListener(NodeListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(NodeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Calls every listener; one failing listener does not keep the event from the others. */
+    private void notifyListeners(Consumer<NodeListener> event) {
+        for (NodeListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                log.warn("Node listener failed", e);
+            }
+        }
     }
 
-    private void initializeSocket() throws SocketException {
-        this.socket = new DatagramSocket(port);
+    private void initializeSocket() throws IOException {
+        int[] sizes = {PacketCrypto.maxSealedSize(MAX_FRAME_BYTES), MAX_PACKET_SIZE};
+        int[] limits = {SEND_BUFFERS, RECEIVE_BUFFERS};
+        if (TRANSPORT.equals("socket")) {
+            this.transport = new DatagramSocketTransport(port, new BufferPool(sizes, limits, false));
+        } else {
+            this.transport = new NioDatagramTransport(port, new BufferPool(sizes, limits, true));
+        }
+        // loss, delay and reordering for load tests; a no-op unless chat.net.* is set
+        this.transport = LossyTransport.wrapIfConfigured(transport, nodeId, services);
     }
 
-    private void startServices() {
-        new Thread(() -> messageListenerService(), "MessageListener").start();
-        new Thread(() -> heartbeatService(), "HeartbeatService").start();
-        new Thread(() -> messageProcessorService(), "MessageProcessor").start();
+    private void startServices() throws IOException {
+        decodeStage.start();
+        dispatchStage.start();
+        transport.start((data, source) -> decodeStage.submit(source,
+            new Inbound(data, source, metrics == null ? 0 : System.nanoTime())), services);
+        if (metrics != null) {
+            metrics.start(timer);
+        }
+        // offset by node so many nodes in one process don't all check on the same tick
+        long offset = spread(nodeId, HEALTH_CHECK_INTERVAL);
+        serviceTimers.add(timer.scheduleAtFixedRate(this::checkPeerHealth,
+            offset, HEALTH_CHECK_INTERVAL, TimeUnit.MILLISECONDS));
+        // forced deliveries append to the message log, which can block when its queue is full
+        serviceTimers.add(timer.scheduleAtFixedRate(
+            () -> runInBackground(() -> causalDelivery.expire(System.currentTimeMillis())),
+            offset, CAUSAL_CHECK_INTERVAL, TimeUnit.MILLISECONDS));
+        serviceTimers.add(timer.scheduleAtFixedRate(() -> runInBackground(this::retryOfflineMessages),
+            OFFLINE_RETRY_INTERVAL + offset, OFFLINE_RETRY_INTERVAL, TimeUnit.MILLISECONDS));
+        if (HISTORY_SYNC) {
+            serviceTimers.add(timer.scheduleAtFixedRate(() -> runInBackground(this::syncWithRandomMembers),
+                SYNC_INTERVAL + spread(nodeId, SYNC_INTERVAL), SYNC_INTERVAL, TimeUnit.MILLISECONDS));
+        }
     }
 
     public boolean authenticateUser(String username, String password) {
         return username.equals("admin") && password.equals("password123");
     }
 
-    private void messageListenerService() {
-        byte[] buffer = new byte[4096];
-        while (isRunning) {
+    /** The decode stage, for its counters; its packet type is internal. */
+    public PipelineStage<?> getDecodeStage() {
+        return decodeStage;
+    }
+
+    public PipelineStage<Message> getDispatchStage() {
+        return dispatchStage;
+    }
+
+    private void decodePacket(Inbound packet) {
+        ByteBuffer plaintext = PLAINTEXT.get();
+        plaintext.clear();
+        int size = packet.data.remaining();
+        if (metrics != null) {
+            metrics.packetReceived(size);
+        }
+        try {
+            ReliableChannel channel = null;
+            int header = packet.data.position();
+            boolean sequenced = false;
+            boolean hasHeader = ReliableChannel.isReliable(packet.data);
+            if (hasHeader) {
+                // strangers get no channel; their packets are opened past the header
+                PeerInfo source = peers.get(packet.source);
+                if (source != null) {
+                    channel = channelFor(source);
+                    sequenced = channel.onHeader(packet.data);
+                } else {
+                    packet.data.position(header + ReliableChannel.HEADER_SIZE);
+                }
+                if (!packet.data.hasRemaining()) {
+                    return; // ack only
+                }
+            }
+            PacketCrypto.Mode mode;
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                handleIncomingPacket(packet);
-            } catch (IOException e) {
-                if (isRunning) {
-                    e.printStackTrace();
+                mode = packetCrypto.open(packet.data, plaintext);
+            } catch (GeneralSecurityException e) {
+                if (!hasHeader) {
+                    throw e;
+                }
+                // a legacy ECB packet that happens to look like a reliability header
+                channel = null;
+                sequenced = false;
+                packet.data.position(header);
+                plaintext.clear();
+                mode = packetCrypto.open(packet.data, plaintext);
+            }
+            if (mode == null) {
+                if (metrics != null) {
+                    metrics.rejectedPacket();
+                }
+                log.warn("Dropped unauthenticated packet from {}", packet.source);
+                return;
+            }
+            // any traffic proves the peer that sent it is alive, not the authors of what it
+            // relays; data frames replace heartbeats
+            PeerInfo sender = peers.get(packet.source);
+            if (sender != null) {
+                updateHeartbeat(sender);
+            }
+            if (sequenced && !channel.accept(packet.data, header)) {
+                if (metrics != null) {
+                    metrics.duplicatePacket();
                 }
+                return;
             }
+            plaintext.flip();
+            if (MessageCodec.isFrame(plaintext)) {
+                Message[] first = new Message[1];
+                int[] count = new int[1];
+                byte flags = MessageCodec.decodeFrame(plaintext, true, message -> {
+                    if (first[0] == null) {
+                        first[0] = message;
+                    }
+                    count[0]++;
+                    dispatchDecoded(message);
+                });
+                if (metrics != null && first[0] != null) {
+                    metrics.packetDecoded(first[0].getSenderId(), size, count[0], packet.receivedAt);
+                }
+                if (first[0] != null && (mode == PacketCrypto.Mode.GCM
+                        || (flags & MessageCodec.FRAME_FLAG_GCM) != 0)) {
+                    enableGcm(first[0].getSenderId());
+                }
+                if (first[0] != null && channel != null) {
+                    enableReliable(first[0].getSenderId());
+                }
+            } else {
+                Message message = MessageCodec.decode(plaintext, true);
+                if (mode == PacketCrypto.Mode.GCM) {
+                    enableGcm(message.getSenderId());
+                }
+                if (channel != null) {
+                    enableReliable(message.getSenderId());
+                }
+                if (metrics != null) {
+                    metrics.packetDecoded(message.getSenderId(), size, 1, packet.receivedAt);
+                }
+                dispatchDecoded(message);
+            }
+        } catch (GeneralSecurityException e) {
+            if (metrics != null) {
+                metrics.rejectedPacket();
+            }
+            log.warn("Dropped packet that failed decryption from {}", packet.source);
+        } catch (Exception e) {
+            log.error("Error processing packet from {}", packet.source, e);
+        } finally {
+            transport.release(packet.data);
         }
     }
 
-    private void handleIncomingPacket(DatagramPacket packet) {
-        try {
-            byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
-            byte[] decryptedData = decrypt(data);
-            Message message = Message.fromBytes(decryptedData);
-            
-            System.out.println("DEBUG: Received packet from: " + packet.getAddress() + ":" + packet.getPort());
-            System.out.println("DEBUG: Message type: " + message.getType());
-            System.out.println("DEBUG: From: " + message.getSenderId() + " To: " + message.getRecipientId());
-            System.out.println("DEBUG: Content: " + message.getContent());
-
-            updateVectorClock(message.getVectorClock());
+    private void dispatchDecoded(Message message) {
+        log.debug("Received {} {} from {}", message.getType(), message.getId(), message.getSenderId());
+        dispatchStage.submit(message.getSenderId(), message);
+    }
 
+    private void handleMessage(Message message) {
+        try {
             switch (message.getType()) {
                 case CHAT:
-                    System.out.println("DEBUG: Processing chat message");
-                    if (gui != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            gui.appendMessage(message.getSenderId(), message.getContent(), nodeId);
-                        });
-                    }
+                    causalDelivery.receive(privateConversation(message.getSenderId()), message);
                     break;
                     
                 case HEARTBEAT:
-                    updateHeartbeat(message.getSenderId());
+                    // content lists the sender's capabilities, e.g. "gcm,rel"
+                    for (String capability : String.valueOf(message.getContent()).split(",")) {
+                        if (capability.equals(PacketCrypto.CAPABILITY_GCM)) {
+                            enableGcm(message.getSenderId());
+                        } else if (capability.equals(CAPABILITY_RELIABLE)) {
+                            enableReliable(message.getSenderId());
+                        } else if (capability.equals(CAPABILITY_SYNC)) {
+                            enableHistorySync(message.getSenderId());
+                        }
+                    }
                     break;
                     
                 case GROUP_CHAT:
@@ -131,30 +429,99 @@ public class Node {
                 case GROUP_INFO:
                     handleGroupInfo(message);
                     break;
+
+                case SYNC_SUMMARY:
+                case SYNC_KEYS:
+                case SYNC_REQUEST:
+                case SYNC_DATA:
+                    if (HISTORY_SYNC) {
+                        historySync.handle(message);
+                    }
+                    break;
             }
         } catch (Exception e) {
-            System.out.println("DEBUG: Error processing packet: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error handling {} from {}", message.getType(), message.getSenderId(), e);
+        }
+    }
+
+    private void enableGcm(String peerId) {
+        PeerInfo peer = peers.get(peerId);
+        if (PREFERRED_CRYPTO == PacketCrypto.Mode.GCM && peer != null
+                && peer.getCryptoMode() != PacketCrypto.Mode.GCM) {
+            peer.setCryptoMode(PacketCrypto.Mode.GCM);
+            log.info("Switched to GCM packets for peer {}", peerId);
         }
     }
 
+    private void enableReliable(String peerId) {
+        PeerInfo peer = peers.get(peerId);
+        if (RELIABLE && peer != null && !peer.isReliable()) {
+            peer.setReliable(true);
+            log.info("Reliable delivery enabled for peer {}", peerId);
+        }
+    }
+
+    private void enableHistorySync(String peerId) {
+        PeerInfo peer = peers.get(peerId);
+        if (HISTORY_SYNC && peer != null && !peer.isHistorySync()) {
+            peer.setHistorySync(true);
+            log.info("History sync enabled for peer {}", peerId);
+            runInBackground(() -> syncSharedRooms(peerId));
+        }
+    }
+
+    private static String capabilities() {
+        List<String> capabilities = new ArrayList<>();
+        if (PREFERRED_CRYPTO == PacketCrypto.Mode.GCM) {
+            capabilities.add(PacketCrypto.CAPABILITY_GCM);
+        }
+        if (RELIABLE) {
+            capabilities.add(CAPABILITY_RELIABLE);
+        }
+        if (HISTORY_SYNC) {
+            capabilities.add(CAPABILITY_SYNC);
+        }
+        return String.join(",", capabilities);
+    }
+
     private void handleGroupInfo(Message message) {
         String[] parts = message.getContent().split(":", 2);
-        if (parts.length == 2) {
+        if (parts.length == 1) {
+            // no member list: a member asking for ours, see noticeNewerMembership
+            ChatRoom room = chatRooms.get(parts[0]);
+            if (room != null && room.isMember(handle) && room.isMember(message.getSenderId())) {
+                sendMemberList(room, message.getSenderId());
+            }
+        } else if (parts.length == 2) {
             String groupId = parts[0];
             String[] members = parts[1].split(",");
             
             ChatRoom room = chatRooms.get(groupId);
-            if (room != null) {
+            String senderId = message.getSenderId();
+            // only a member may tell us who else is in the room
+            if (room != null && room.isMember(senderId)) {
+                List<String> listed = new ArrayList<>(members.length);
                 for (String member : members) {
                     if (!member.isEmpty()) {
-                        room.addMember(member);
+                        listed.add(member);
                     }
                 }
-                
-                // Update GUI
-                if (gui != null) {
-                    SwingUtilities.invokeLater(() -> gui.updateGroupList());
+                Membership before = room.getMembership();
+                if (senderId.equals(room.getAdminId()) && message.getMembershipVersion() > 0) {
+                    // the admin's list and version replace ours if they are newer
+                    room.adopt(message.getMembershipVersion(), listed);
+                } else {
+                    // anyone else can only add; on the admin's node that changes the room
+                    boolean admin = room.getAdminId().equals(nodeId);
+                    for (String member : listed) {
+                        room.addMember(member, admin);
+                    }
+                }
+                if (room.getMembership() != before) {
+                    causalDelivery.retainParticipants(groupId, room.getMembers());
+                    // the member list comes from whoever added us, who has the room's history
+                    runInBackground(() -> syncRoom(groupId, senderId));
+                    notifyListeners(NodeListener::groupsChanged);
                 }
             }
         }
@@ -162,13 +529,17 @@ public class Node {
 
     private void handleGroupJoin(Message message) {
         String groupId = message.getContent(); // Group ID is in the content
-        System.out.println("DEBUG: Handling group join notification for group: " + groupId);
+        log.debug("Handling group join notification for group {}", groupId);
+        if (!peers.contains(message.getSenderId())) {
+            log.warn("Ignoring invitation to {} from unknown node {}", groupId, message.getSenderId());
+            return;
+        }
     
         // Create group if it doesn't exist locally
         if (!chatRooms.containsKey(groupId)) {
             ChatRoom newRoom = new ChatRoom(groupId, "Group-" + groupId, message.getSenderId(), false);
             chatRooms.put(groupId, newRoom);
-            System.out.println("DEBUG: Created new group locally: " + groupId);
+            log.info("Created group {} locally", groupId);
         }
     
         // Get the group
@@ -178,126 +549,201 @@ public class Node {
         room.addMember(nodeId);
         
         // Add sender to group members if not already present
-        if (!room.getMembers().contains(message.getSenderId())) {
+        if (!room.isMember(message.getSenderId())) {
             room.addMember(message.getSenderId());
         }
     
-        // Update GUI - Only show join message if we are the one being added
-        if (gui != null && message.getRecipientId().equals(nodeId)) {
-            SwingUtilities.invokeLater(() -> {
-                gui.updateGroupList();
-                gui.showSystemMessage("You have added someone to the group: ");
-            });
-        } else if (gui != null) {
-            // Just update the group list for other members
-            SwingUtilities.invokeLater(() -> {
-                gui.updateGroupList();
-            });
+        // Only show the join message if we are the one being added
+        notifyListeners(NodeListener::groupsChanged);
+        if (message.getRecipientId().equals(nodeId)) {
+            notifyListeners(listener -> listener.notice("You have added someone to the group: "));
         }
     
-        System.out.println("DEBUG: Successfully processed group join for: " + groupId);
+        log.debug("Processed group join for {}", groupId);
     }
     private void handleGroupMessage(Message message) {
         String groupId = message.getRecipientId();
         ChatRoom room = chatRooms.get(groupId);
+        Membership membership = room == null ? null : room.getMembership();
         
-        if (room != null && room.getMembers().contains(nodeId)) {
-            System.out.println("DEBUG: Received group message for group: " + groupId);
-            
-            // Display the message in GUI
-            if (gui != null) {
-                gui.appendMessage(message.getSenderId(), message.getContent(), groupId);
+        if (membership != null && membership.isMember(handle)) {
+            // relayed modes can deliver the same message along several paths
+            if (!seenGroupMessages.add(message.getId())) {
+                return;
             }
-            
-            // Store in message log
-            messageLog.add(message);
+            if (message.getMembershipVersion() > membership.getVersion()) {
+                noticeNewerMembership(room, membership, message);
+            }
+            if (message.getDissemination() != DisseminationMode.DIRECT) {
+                disseminate(membership, message.relayed());
+            }
+            // relaying above does not wait; showing the message waits for what it depends on
+            causalDelivery.receive(groupId, message);
         } else {
-            System.out.println("DEBUG: Received message for unknown/non-member group: " + groupId);
+            log.debug("Received message for unknown/non-member group {}", groupId);
         }
     }
 
-    private void updateVectorClock(Map<String, Integer> receivedClock) {
-        for (Map.Entry<String, Integer> entry : receivedClock.entrySet()) {
-            vectorClock.merge(entry.getKey(), entry.getValue(), Integer::max);
+    /**
+     * The sender has seen a change of the admin's that this node has missed. The version
+     * travels unauthenticated, so nothing is taken from the message itself: the room's
+     * admin is asked for its member list, once per newer version seen.
+     */
+    private void noticeNewerMembership(ChatRoom room, Membership membership, Message message) {
+        String roomId = room.getRoomId();
+        long version = message.getMembershipVersion();
+        log.debug("Membership of {} is behind {}'s version {}", roomId, message.getSenderId(), version);
+        String adminId = room.getAdminId();
+        if (adminId.equals(nodeId) || !membership.isMember(adminId)) {
+            return;
+        }
+        Long requested = membershipRequested.get(roomId);
+        if (requested != null && requested >= version) {
+            return;
+        }
+        membershipRequested.put(roomId, version);
+        Message request = new Message(
+            UUID.randomUUID().toString(),
+            nodeId,
+            adminId,
+            roomId,
+            System.currentTimeMillis(),
+            Collections.emptyMap(),
+            MessageType.GROUP_INFO
+        );
+        try {
+            sendToPeer(request, adminId);
+        } catch (Exception e) {
+            log.warn("Failed to ask {} for the members of {}", adminId, roomId, e);
         }
     }
 
-    private void heartbeatService() {
-        while (isRunning) {
-            try {
-                sendHeartbeat();
-                checkPeerHealth();
-                Thread.sleep(HEARTBEAT_INTERVAL);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            } catch (Exception e) {
-                e.printStackTrace();
+    /** Shows a chat or group message once {@link CausalDelivery} releases it. */
+    private void deliver(Message message) {
+        Consumer<Message> observer = deliveryObserver;
+        if (observer != null) {
+            observer.accept(message);
+        }
+        record(message);
+        notifyListeners(listener -> listener.messageReceived(message));
+    }
+
+    /**
+     * Shows a room message that {@link HistorySync} found missing here. It bypasses
+     * causal delivery: it is older than what has been delivered, and its clock stayed
+     * with the peer that sent it.
+     */
+    private void backfill(Message message) {
+        ChatRoom room = chatRooms.get(message.getRecipientId());
+        if (room == null || !room.isMember(handle) || !seenGroupMessages.add(message.getId())) {
+            return;
+        }
+        deliver(message);
+    }
+
+    private boolean sharesRoom(String roomId, String peerId) {
+        ChatRoom room = chatRooms.get(roomId);
+        return room != null && room.isMember(handle) && room.isMember(peerId);
+    }
+
+    /** Sync traffic only goes to reachable peers that understand it, and is never queued. */
+    private void sendSyncMessage(String peerId, Message message) throws Exception {
+        PeerInfo peer = peers.get(peerId);
+        if (peer != null && peer.isHistorySync() && peer.getStatus() == NodeStatus.ACTIVE) {
+            sendToPeer(message, peerId);
+        }
+    }
+
+    private void syncRoom(String roomId, String peerId) {
+        if (HISTORY_SYNC) {
+            historySync.start(roomId, peerId);
+        }
+    }
+
+    /** Catches up every room shared with a peer that is reachable again. */
+    private void syncSharedRooms(String peerId) {
+        for (String roomId : chatRooms.keySet()) {
+            if (sharesRoom(roomId, peerId)) {
+                syncRoom(roomId, peerId);
             }
         }
     }
 
-    private void messageProcessorService() {
-        while (isRunning) {
-            try {
-                Message message = messageQueue.poll(1, TimeUnit.SECONDS);
-                if (message != null) {
-                    processMessage(message);
+    /** Backstop: compares each room with one random reachable member. */
+    private void syncWithRandomMembers() {
+        for (ChatRoom room : chatRooms.values()) {
+            if (!room.isMember(handle)) {
+                continue;
+            }
+            List<String> candidates = new ArrayList<>();
+            for (int member : room.getMemberHandles()) {
+                PeerInfo peer = peers.get(member);
+                if (peer != null && peer.isHistorySync() && peer.getStatus() == NodeStatus.ACTIVE) {
+                    candidates.add(peer.getPeerId());
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+            }
+            if (!candidates.isEmpty()) {
+                syncRoom(room.getRoomId(),
+                    candidates.get(ThreadLocalRandom.current().nextInt(candidates.size())));
             }
         }
     }
 
-    private void processMessage(Message message) {
+    /** Adds a chat or group message, sent or received, to the history on disk. */
+    private void record(Message message) {
         try {
-            if (message.getType() == MessageType.CHAT) {
-                if (gui != null) {
-                    gui.appendMessage(message.getSenderId(), message.getContent(), message.getRecipientId());
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+            messageLog.append(message);
+        } catch (IOException e) {
+            log.warn("Could not log message {}", message.getId(), e);
+        }
+    }
+
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /** Paged access to the chat and group messages in the log. */
+    public HistoryStore getHistory() {
+        return history;
+    }
+
+    public HistorySync getHistorySync() {
+        return historySync;
+    }
+
+    /** Conversation ID of the private chat with a peer, kept apart from room IDs. */
+    private static String privateConversation(String peerId) {
+        return "@" + peerId;
+    }
+
+    /**
+     * Runs work that may block, such as reading queue files or history digests, on the
+     * node's background threads. Timer tasks hand such work over here instead of running
+     * it, since the timer's few workers also drive every node's heartbeats and retransmits.
+     */
+    private void runInBackground(Runnable task) {
+        try {
+            backgroundExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shutting down
         }
     }
 
+    /** Deterministic offset in [0, period) so periodic timers keyed by ID are spread out. */
+    private static long spread(String key, long period) {
+        return Math.floorMod(key.hashCode() * 0x9E3779B9L, period);
+    }
+
     public void sendMessage(String content, String recipientId) throws Exception {
-        System.out.println("DEBUG: Attempting to send message to: " + recipientId);
-        
         // Check if this is a group message
         if (chatRooms.containsKey(recipientId)) {
-            // This is a group message
-            ChatRoom room = chatRooms.get(recipientId);
-            System.out.println("DEBUG: Sending group message to room: " + recipientId);
-            
-            Message groupMessage = new Message(
-                UUID.randomUUID().toString(),
-                nodeId,
-                recipientId,  // recipientId here is the group ID
-                content,
-                System.currentTimeMillis(),
-                new HashMap<>(vectorClock),
-                MessageType.GROUP_CHAT
-            );
-    
-            // Send to all group members except self
-            for (String memberId : room.getMembers()) {
-                if (!memberId.equals(nodeId) && peers.containsKey(memberId)) {
-                    System.out.println("DEBUG: Forwarding group message to member: " + memberId);
-                    sendToPeer(groupMessage, memberId);
-                }
-            }
-    
-            // Display message in own GUI
-            if (gui != null) {
-                gui.appendMessage("You", content, recipientId);
+            FanoutEngine.Result result = sendGroupMessage(content, recipientId);
+            if (!result.isComplete()) {
+                log.warn("Group message to {} partially failed: {}", recipientId, result);
             }
         } else {
             // This is a private message
-            if (!peers.containsKey(recipientId)) {
-                System.out.println("DEBUG: Peer not found: " + recipientId);
+            if (!peers.contains(recipientId)) {
                 throw new IllegalArgumentException("Peer not found: " + recipientId);
             }
     
@@ -307,110 +753,520 @@ public class Node {
                 recipientId,
                 content,
                 System.currentTimeMillis(),
-                new HashMap<>(vectorClock),
+                causalDelivery.stamp(privateConversation(recipientId)),
                 MessageType.CHAT
             );
     
             sendToPeer(privateMessage, recipientId);
+            record(privateMessage);
             
-            if (gui != null) {
-                gui.appendMessage("You", content, recipientId);
+            notifyListeners(listener -> listener.messageSent(privateMessage));
+        }
+    }
+
+    /**
+     * Sends a message to every other member of the group. The message is encoded and
+     * encrypted once for all recipients; members that are offline get it queued.
+     */
+    public FanoutEngine.Result sendGroupMessage(String content, String groupId) {
+        ChatRoom room = chatRooms.get(groupId);
+        if (room == null) {
+            throw new IllegalArgumentException("Group not found: " + groupId);
+        }
+        // one snapshot both stamps the message and picks its recipients
+        Membership membership = room.getMembership();
+        Message groupMessage = new Message(
+            UUID.randomUUID().toString(),
+            nodeId,
+            groupId,
+            content,
+            System.currentTimeMillis(),
+            causalDelivery.stamp(groupId, membership.getVersion()),
+            MessageType.GROUP_CHAT,
+            room.getDisseminationMode(),
+            0,
+            membership.getVersion()
+        );
+        seenGroupMessages.add(groupMessage.getId());
+        record(groupMessage);
+        FanoutEngine.Result result = disseminate(membership, groupMessage);
+
+        notifyListeners(listener -> listener.messageSent(groupMessage));
+        return result;
+    }
+
+    /**
+     * Sends a group message on to the members this node is responsible for: everyone for
+     * DIRECT, its subtree for TREE, or a few random members for GOSSIP.
+     */
+    private FanoutEngine.Result disseminate(Membership membership, Message message) {
+        boolean origin = message.getSenderId().equals(nodeId);
+        int[] targets;
+        switch (message.getDissemination()) {
+            case TREE:
+                targets = treeChildren(membership, message.getSenderId());
+                break;
+            case GOSSIP:
+                targets = gossipTargets(membership, message);
+                break;
+            default:
+                targets = origin ? membership.getMemberHandles() : NO_TARGETS;
+        }
+
+        List<PeerInfo> recipients = new ArrayList<>(targets.length);
+        List<String> unreachable = new ArrayList<>();
+        for (int target : targets) {
+            if (target == handle) {
+                continue;
+            }
+            PeerInfo peer = peers.get(target);
+            if (peer == null) {
+                unreachable.add(NodeIds.name(target));
+            } else if (peer.getStatus() == NodeStatus.ACTIVE) {
+                recipients.add(peer);
+            } else {
+                if (origin) {
+                    queueOffline(peer.getPeerId(), message);
+                }
+                unreachable.add(peer.getPeerId());
+            }
+        }
+
+        long start = metrics == null ? 0 : System.nanoTime();
+        FanoutEngine.Result result = fanout.send(message, frameFlags(), recipients);
+        if (metrics != null) {
+            metrics.getFanout().recordSince(start);
+        }
+        for (String memberId : unreachable) {
+            result.fail(memberId, peers.contains(memberId) ? "offline" : "unknown peer");
+        }
+        return result;
+    }
+
+    /**
+     * Children of this node in a k-ary tree over the members sorted by ID, rooted at the
+     * origin. Every member derives the same tree from its own view of the room; children
+     * that are not active are replaced by their own children so a dead relay does not cut
+     * off its subtree.
+     */
+    private int[] treeChildren(Membership membership, String originId) {
+        List<String> order = new ArrayList<>(membership.getMembers());
+        order.remove(originId);
+        Collections.sort(order);
+        // the origin is the root at index -1
+        int self = order.indexOf(nodeId);
+        if (self < 0 && !nodeId.equals(originId)) {
+            return NO_TARGETS;
+        }
+
+        int[] children = new int[order.size()];
+        int count = 0;
+        Deque<Integer> pending = new ArrayDeque<>();
+        addTreeChildren(pending, self, order.size());
+        while (!pending.isEmpty()) {
+            int index = pending.poll();
+            PeerInfo peer = peers.get(order.get(index));
+            if (peer != null && peer.getStatus() == NodeStatus.ACTIVE) {
+                children[count++] = peer.getHandle();
+            } else {
+                addTreeChildren(pending, index, order.size());
+            }
+        }
+        return Arrays.copyOf(children, count);
+    }
+
+    private static void addTreeChildren(Deque<Integer> pending, int parent, int size) {
+        int first = TREE_FANOUT * (parent + 1);
+        for (int i = first; i < first + TREE_FANOUT && i < size; i++) {
+            pending.add(i);
+        }
+    }
+
+    /** Random members other than the origin and this node, until the hop limit is reached. */
+    private int[] gossipTargets(Membership membership, Message message) {
+        int[] members = membership.getMemberHandles();
+        int fanoutSize = GOSSIP_FANOUT > 0 ? GOSSIP_FANOUT
+            : Math.max(3, (int) Math.ceil(Math.log(members.length)) + 1);
+        int maxHops = (int) Math.ceil(Math.log(Math.max(2, members.length)) / Math.log(fanoutSize)) + 2;
+        if (message.getHops() >= maxHops) {
+            return NO_TARGETS;
+        }
+        int origin = NodeIds.find(message.getSenderId());
+        int[] candidates = new int[members.length];
+        int count = 0;
+        for (int member : members) {
+            if (member != origin && member != handle) {
+                candidates[count++] = member;
             }
         }
+        // a partial Fisher-Yates shuffle picks the first fanoutSize
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int picked = Math.min(fanoutSize, count);
+        for (int i = 0; i < picked; i++) {
+            int j = i + random.nextInt(count - i);
+            int swap = candidates[i];
+            candidates[i] = candidates[j];
+            candidates[j] = swap;
+        }
+        return Arrays.copyOf(candidates, picked);
+    }
+
+    public void setDisseminationMode(String groupId, DisseminationMode mode) {
+        ChatRoom room = chatRooms.get(groupId);
+        if (room == null) {
+            throw new IllegalArgumentException("Group not found: " + groupId);
+        }
+        room.setDisseminationMode(mode);
+    }
+
+    /** Called with every chat or group message this node delivers; used by test harnesses. */
+    public void setDeliveryObserver(Consumer<Message> deliveryObserver) {
+        this.deliveryObserver = deliveryObserver;
+    }
+
+    /** Hold-back buffer that orders incoming chat and group messages causally. */
+    public CausalDelivery getCausalDelivery() {
+        return causalDelivery;
+    }
+
+    /** Datagrams this node has sent, including relayed group messages. */
+    public long getPacketsSent() {
+        return packetsSent.sum();
     }
 
     private void sendToPeer(Message message, String peerId) throws Exception {
         PeerInfo peer = peers.get(peerId);
-        System.out.println("DEBUG: Attempting to send to peer: " + peerId);
-        
         if (peer != null) {
-            System.out.println("DEBUG: Peer found. Status: " + peer.getStatus());
-            System.out.println("DEBUG: Peer address: " + peer.getAddress() + ":" + peer.getPort());
-            
             if (peer.getStatus() == NodeStatus.ACTIVE) {
-                byte[] encryptedData = encrypt(message.toBytes());
-                DatagramPacket packet = new DatagramPacket(
-                    encryptedData,
-                    encryptedData.length,
-                    peer.getAddress(),
-                    peer.getPort()
-                );
-                socket.send(packet);
-                System.out.println("DEBUG: Message sent successfully");
+                if (MessageCodec.LEGACY_ENCODE) {
+                    // legacy peers cannot unpack frames
+                    sendFrame(peerId, MessageCodec.encodeReusable(message), true);
+                } else {
+                    batcherFor(peerId).enqueue(message);
+                }
             } else {
-                System.out.println("DEBUG: Peer is not active");
-                offlineMessages.add(message);
+                queueOffline(peerId, message);
             }
         } else {
-            System.out.println("DEBUG: Peer is null");
-            offlineMessages.add(message);
+            queueOffline(peerId, message);
+        }
+    }
+
+    private void queueOffline(String peerId, Message message) {
+        try {
+            offlineQueue.add(peerId, message);
+        } catch (IOException e) {
+            log.warn("Failed to persist offline message for {}", peerId, e);
+        }
+    }
+
+    /** Backstop for peers that became ACTIVE while a message was being queued for them. */
+    private void retryOfflineMessages() {
+        for (String peerId : offlineQueue.getPeers()) {
+            PeerInfo peer = peers.get(peerId);
+            // wait until the peer has actually been heard from, not just added as ACTIVE
+            if (peer != null && peer.getStatus() == NodeStatus.ACTIVE && peer.getFailureDetector() != null) {
+                drainOffline(peerId);
+            }
         }
     }
 
-    private void sendHeartbeat() throws Exception {
+    /**
+     * Sends what is queued for a peer that is reachable again. Each message goes out in its
+     * own packet and leaves the queue only once the peer's channel has taken it.
+     */
+    private void drainOffline(String peerId) {
+        int sent;
+        try {
+            sent = offlineQueue.drain(peerId, message -> sendQueued(peerId, message));
+        } catch (IOException e) {
+            log.warn("Failed to update offline messages for {}", peerId, e);
+            return;
+        }
+        if (sent > 0) {
+            log.info("Sent {} queued messages to {}", sent, peerId);
+        }
+    }
+
+    private boolean sendQueued(String peerId, Message message) {
+        PeerInfo peer = peers.get(peerId);
+        if (peer == null || peer.getStatus() != NodeStatus.ACTIVE) {
+            return false;
+        }
+        try {
+            return sealAndSend(peer, MessageCodec.encodeReusable(message), true);
+        } catch (Exception e) {
+            log.warn("Retry to {} failed: {}", peerId, e.getMessage());
+            return false;
+        }
+    }
+
+    private OutboundBatcher batcherFor(String peerId) {
+        return batchers.computeIfAbsent(peerId, id -> new OutboundBatcher(id, this::sendFrame,
+            timer, BATCH_WINDOW_MICROS, MAX_FRAME_BYTES, frameFlags()));
+    }
+
+    private static byte frameFlags() {
+        return PREFERRED_CRYPTO == PacketCrypto.Mode.GCM ? MessageCodec.FRAME_FLAG_GCM : 0;
+    }
+
+    private void sendFrame(String peerId, ByteBuffer frame, boolean carriesData) throws Exception {
+        PeerInfo peer = peers.get(peerId);
+        if (peer == null) {
+            return;
+        }
+        ByteBuffer plaintext = frame.duplicate();
+        if (!sealAndSend(peer, frame, carriesData) && carriesData) {
+            // the channel's backlog is full: keep the messages for when the peer catches up
+            requeueFrame(peerId, plaintext);
+        }
+    }
+
+    /** Seals a frame for the peer and sends it; false if its reliable channel refused it. */
+    private boolean sealAndSend(PeerInfo peer, ByteBuffer frame, boolean carriesData) throws Exception {
+        long start = metrics == null ? 0 : System.nanoTime();
+        ByteBuffer packet = transport.acquire(PacketCrypto.maxSealedSize(frame.remaining()));
+        boolean accepted;
+        try {
+            packetCrypto.seal(frame, packet, peer.getCryptoMode());
+            packet.flip();
+            accepted = sendPacket(peer, packet, carriesData);
+        } finally {
+            transport.release(packet);
+        }
+        if (metrics != null) {
+            metrics.getSend().recordSince(start);
+        }
+        return accepted;
+    }
+
+    private void requeueFrame(String peerId, ByteBuffer plaintext) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        Consumer<Message> requeue = message -> {
+            if (message.getType() != MessageType.HEARTBEAT) {
+                messages.add(message);
+            }
+        };
+        if (MessageCodec.isFrame(plaintext)) {
+            MessageCodec.decodeFrame(plaintext, requeue);
+        } else {
+            requeue.accept(MessageCodec.decode(plaintext));
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        // callers run on timer threads, which must not wait for the queue file
+        Runnable write = () -> messages.forEach(message -> queueOffline(peerId, message));
+        try {
+            backgroundExecutor.execute(write);
+        } catch (RejectedExecutionException e) {
+            // shutting down: better late on this thread than lost
+            write.run();
+        }
+    }
+
+    /**
+     * Sends a sealed packet, through the peer's reliable channel when it supports one.
+     * Returns false if the channel's backlog is full and the packet was dropped.
+     */
+    private boolean sendPacket(PeerInfo peer, ByteBuffer packet, boolean carriesData) throws IOException {
+        if (metrics != null) {
+            metrics.packetSent(peer.getPeerId(), packet.remaining());
+        }
+        if (peer.isReliable()) {
+            // heartbeats alone don't reopen a channel, e.g. probes to an INACTIVE peer
+            ReliableChannel channel = carriesData ? channelFor(peer) : channels.get(peer.getSocketAddress());
+            if (channel == null) {
+                ReliableChannel.sendUnsequenced(transport, peer.getSocketAddress(), packet);
+            } else if (!channel.send(packet, carriesData)) {
+                return false;
+            }
+        } else {
+            transport.send(packet, peer.getSocketAddress());
+        }
+        packetsSent.increment();
+        return true;
+    }
+
+    /** The reliable channel to a known peer, opened on first use. */
+    private ReliableChannel channelFor(PeerInfo peer) {
+        return channels.computeIfAbsent(peer.getSocketAddress(), a -> {
+            ReliableChannel channel = new ReliableChannel(a, transport, timer);
+            if (metrics != null) {
+                channel.setRttObserver(metrics::rttSampled);
+            }
+            return channel;
+        });
+    }
+
+    /** Drops the channel to a peer and moves the messages it had not delivered to the offline queue. */
+    private void closeChannel(PeerInfo peer) {
+        ReliableChannel channel = channels.remove(peer.getSocketAddress());
+        if (channel == null) {
+            return;
+        }
+        ByteBuffer plaintext = PLAINTEXT.get();
+        for (ByteBuffer sealed : channel.close()) {
+            plaintext.clear();
+            try {
+                if (packetCrypto.open(sealed, plaintext) != null) {
+                    plaintext.flip();
+                    requeueFrame(peer.getPeerId(), plaintext);
+                }
+            } catch (GeneralSecurityException | IOException e) {
+                log.warn("Dropped an undelivered packet to {}: {}", peer.getPeerId(), e.getMessage());
+            }
+        }
+    }
+
+    /** The reliable channel to a peer, if one was opened. */
+    private ReliableChannel channelOf(String peerId) {
+        PeerInfo peer = peers.get(peerId);
+        return peer == null ? null : channels.get(peer.getSocketAddress());
+    }
+
+    /** Counters and latencies of this node, or null unless chat.metrics.enabled is set. */
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Packets resent by the reliability layer because no ack arrived in time. */
+    public long getRetransmittedCount() {
+        long total = 0;
+        for (ReliableChannel channel : channels.values()) {
+            total += channel.getRetransmittedCount();
+        }
+        return total;
+    }
+
+    /** Starts the periodic heartbeat for a peer, phase-shifted by its ID to avoid bursts. */
+    private void startHeartbeat(String peerId) {
+        AtomicLong round = new AtomicLong();
+        TimerWheel.Timeout previous = heartbeatTimers.put(peerId, timer.scheduleAtFixedRate(() -> {
+            try {
+                sendHeartbeat(peerId, round.getAndIncrement() % INACTIVE_PROBE_EVERY == 0);
+            } catch (Exception e) {
+                log.debug("Heartbeat to {} failed: {}", peerId, e.getMessage());
+            }
+        }, spread(peerId, HEARTBEAT_INTERVAL), HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS));
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    private void sendHeartbeat(String peerId, boolean probeInactive) throws Exception {
+        PeerInfo peer = peers.get(peerId);
+        if (peer == null || (peer.getStatus() == NodeStatus.INACTIVE && !probeInactive)) {
+            return;
+        }
+        // skip peers that received data within the interval; otherwise the heartbeat
+        // joins any frame still waiting to be flushed. Heartbeats go out whatever the
+        // peer's status, since they are how a suspected peer proves itself alive again.
+        OutboundBatcher batcher = batcherFor(peerId);
+        if (System.currentTimeMillis() - batcher.getLastDataFlushTime() < HEARTBEAT_INTERVAL) {
+            return;
+        }
         Message heartbeat = new Message(
-            UUID.randomUUID().toString(),
+            nodeId + "-hb-" + heartbeatSequence.incrementAndGet(),
             nodeId,
             null,
-            "",
+            capabilities(),
             System.currentTimeMillis(),
-            new HashMap<>(vectorClock),
+            Collections.emptyMap(),
             MessageType.HEARTBEAT
         );
-
-        for (Map.Entry<String, PeerInfo> entry : peers.entrySet()) {
-            if (entry.getValue().getStatus() != NodeStatus.INACTIVE) {
-                sendToPeer(heartbeat, entry.getKey());
-            }
+        if (MessageCodec.LEGACY_ENCODE) {
+            sendFrame(peerId, MessageCodec.encodeReusable(heartbeat), false);
+        } else {
+            batcher.enqueue(heartbeat);
         }
     }
 
-    private void updateHeartbeat(String senderId) {
-        lastHeartbeat.put(senderId, System.currentTimeMillis());
-        PeerInfo peer = peers.get(senderId);
-        if (peer != null && peer.getStatus() != NodeStatus.ACTIVE) {
-            peer.setStatus(NodeStatus.ACTIVE);
+    private void updateHeartbeat(PeerInfo peer) {
+        String senderId = peer.getPeerId();
+        // only the decode lane of the peer's address gets here, so there is no race to create it
+        PhiAccrualFailureDetector detector = peer.getFailureDetector();
+        if (detector == null) {
+            detector = new PhiAccrualFailureDetector(FD_WINDOW, HEARTBEAT_INTERVAL, FD_MIN_STD_DEVIATION,
+                FD_ACCEPTABLE_PAUSE, HEARTBEAT_INTERVAL / 2);
+            peer.setFailureDetector(detector);
+        }
+        detector.heartbeat(System.currentTimeMillis());
+        NodeStatus previous = peer.getStatus();
+        // retried if a health check escalates the status in between
+        while (previous != NodeStatus.ACTIVE && !peer.compareAndSetStatus(previous, NodeStatus.ACTIVE)) {
+            previous = peer.getStatus();
+        }
+        if (previous != NodeStatus.ACTIVE) {
+            log.info("Peer {} is {} again", senderId, NodeStatus.ACTIVE);
+            notifyListeners(listener -> listener.peerStatusChanged(senderId, NodeStatus.ACTIVE));
+            // off the decode lane: draining reads the queue file
+            runInBackground(() -> drainOffline(senderId));
+            if (peer.isHistorySync()) {
+                runInBackground(() -> syncSharedRooms(senderId));
+            }
         }
     }
 
+    /** Moves peers between ACTIVE, SUSPECTED and INACTIVE as their phi crosses the thresholds. */
     private void checkPeerHealth() {
         long now = System.currentTimeMillis();
-        for (Map.Entry<String, Long> entry : lastHeartbeat.entrySet()) {
-            if (now - entry.getValue() > SUSPECTED_TIMEOUT) {
-                PeerInfo peer = peers.get(entry.getKey());
-                if (peer != null && peer.getStatus() != NodeStatus.SUSPECTED) {
-                    peer.setStatus(NodeStatus.SUSPECTED);
+        for (PeerInfo peer : peers.toArray()) {
+            PhiAccrualFailureDetector detector = peer.getFailureDetector();
+            if (detector == null) {
+                continue;
+            }
+            double phi = detector.phi(now);
+            NodeStatus current = peer.getStatus();
+            NodeStatus status = phi >= INACTIVE_PHI ? NodeStatus.INACTIVE
+                : phi >= SUSPECT_PHI ? NodeStatus.SUSPECTED
+                : current;
+            // only heartbeats bring a peer back to ACTIVE; phi never lowers the status here.
+            // If a heartbeat changed the status since it was read, the next check decides again.
+            if (severity(status) > severity(current) && peer.compareAndSetStatus(current, status)) {
+                log.info("Peer {} is {} (phi={})", peer.getPeerId(), status, Math.round(phi * 10) / 10.0);
+                notifyListeners(listener -> listener.peerStatusChanged(peer.getPeerId(), status));
+                if (status == NodeStatus.INACTIVE) {
+                    // stop retransmitting into the void; a fresh channel is opened when the
+                    // peer is back, and what this one still held waits in the offline queue
+                    closeChannel(peer);
                 }
             }
         }
     }
 
-    private byte[] encrypt(byte[] data) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
-        return cipher.doFinal(data);
-    }
-
-    private byte[] decrypt(byte[] data) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-        cipher.init(Cipher.DECRYPT_MODE, encryptionKey);
-        return cipher.doFinal(data);
+    private static int severity(NodeStatus status) {
+        switch (status) {
+            case INACTIVE: return 2;
+            case SUSPECTED: return 1;
+            default: return 0;
+        }
     }
 
     public void addPeer(String peerId, int port) {
         try {
-            System.out.println("DEBUG: Adding peer: " + peerId + " on port " + port);
             InetAddress address = InetAddress.getByName("localhost");
             PeerInfo peer = new PeerInfo(peerId, address, port, NodeStatus.ACTIVE);
-            peers.put(peerId, peer);
-            System.out.println("DEBUG: Peer added successfully");
-            System.out.println("DEBUG: Current peers: " + peers.keySet());
+            PeerInfo previous = peers.add(peer);
+            if (previous != null) {
+                // keep the heartbeat history of a peer that is added again
+                peer.setFailureDetector(previous.getFailureDetector());
+                if (!previous.getSocketAddress().equals(peer.getSocketAddress())) {
+                    closeChannel(previous);
+                }
+            }
+            startHeartbeat(peerId);
+            log.info("Added peer {} on port {}", peerId, port);
         } catch (Exception e) {
-            System.out.println("DEBUG: Error adding peer: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error adding peer {}", peerId, e);
         }
     }
 
+    /** A copy of the known peers by ID. */
+    public Map<String, PeerInfo> getPeers() {
+        return peers.asMap();
+    }
+
     public Map<String, ChatRoom> getChatRooms() {
         return chatRooms;
     }
@@ -419,18 +1275,19 @@ public class Node {
         ChatRoom room = new ChatRoom(groupId, "Group-" + groupId, nodeId, true);
         chatRooms.put(groupId, room);
         room.addMember(nodeId);
+        notifyListeners(NodeListener::groupsChanged);
     }
 
     public void addMemberToGroup(String groupId, String newMemberId) {
-        System.out.println("DEBUG: Adding member " + newMemberId + " to group " + groupId);
+        log.info("Adding member {} to group {}", newMemberId, groupId);
         
         ChatRoom room = chatRooms.get(groupId);
         if (room == null) {
             throw new IllegalArgumentException("Group not found: " + groupId);
         }
     
-        // Add member to local group
-        room.addMember(newMemberId);
+        // Add member to local group; adding someone to a restricted group also allows them in
+        room.invite(newMemberId, room.getAdminId().equals(nodeId));
     
         // Create and send group join notification to the new member
         try {
@@ -440,48 +1297,81 @@ public class Node {
                 newMemberId,
                 groupId,  // Send group ID in content
                 System.currentTimeMillis(),
-                new HashMap<>(vectorClock),
+                Collections.emptyMap(),
                 MessageType.JOIN_GROUP
             );
     
             // Send notification to the new member
             sendToPeer(joinNotification, newMemberId);
-            System.out.println("DEBUG: Sent group join notification to " + newMemberId);
+            log.debug("Sent group join notification to {}", newMemberId);
     
             // Also send the current group member list
-            StringBuilder memberList = new StringBuilder();
-            for (String member : room.getMembers()) {
-                memberList.append(member).append(",");
-            }
-            
-            Message memberListMessage = new Message(
-                UUID.randomUUID().toString(),
-                nodeId,
-                newMemberId,
-                groupId + ":" + memberList.toString(),
-                System.currentTimeMillis(),
-                new HashMap<>(vectorClock),
-                MessageType.GROUP_INFO
-            );
-            
-            sendToPeer(memberListMessage, newMemberId);
+            sendMemberList(room, newMemberId);
     
         } catch (Exception e) {
-            System.out.println("DEBUG: Failed to send group join notification: " + e.getMessage());
-            e.printStackTrace();
+            log.warn("Failed to send group join notification to {}", newMemberId, e);
         }
     
-        // Update GUI
-        if (gui != null) {
-            gui.showSystemMessage("User " + newMemberId + " added to " + groupId);
-            gui.updateGroupList();
+        notifyListeners(listener -> listener.notice("User " + newMemberId + " added to " + groupId));
+        notifyListeners(NodeListener::groupsChanged);
+    }
+
+    /** Sends the room's members with the version they are at; the admin's list is adopted. */
+    private void sendMemberList(ChatRoom room, String peerId) {
+        Membership membership = room.getMembership();
+        StringBuilder memberList = new StringBuilder();
+        for (String member : membership.getMembers()) {
+            memberList.append(member).append(",");
+        }
+        
+        Message memberListMessage = new Message(
+            UUID.randomUUID().toString(),
+            nodeId,
+            peerId,
+            room.getRoomId() + ":" + memberList.toString(),
+            System.currentTimeMillis(),
+            Collections.emptyMap(),
+            MessageType.GROUP_INFO,
+            DisseminationMode.DIRECT,
+            0,
+            membership.getVersion()
+        );
+        
+        try {
+            sendToPeer(memberListMessage, peerId);
+        } catch (Exception e) {
+            log.warn("Failed to send the members of {} to {}", room.getRoomId(), peerId, e);
         }
     }
 
-    public void shutdown() {
+    /** Stops the node; later calls do nothing. */
+    public synchronized void shutdown() {
+        if (!isRunning) {
+            return;
+        }
         isRunning = false;
-        if (socket != null) {
-            socket.close();
+        if (metrics != null) {
+            metrics.stop();
+        }
+        decodeStage.shutdown();
+        dispatchStage.shutdown();
+        for (TimerWheel.Timeout timeout : serviceTimers) {
+            timeout.cancel();
+        }
+        for (TimerWheel.Timeout timeout : heartbeatTimers.values()) {
+            timeout.cancel();
+        }
+        for (ReliableChannel channel : channels.values()) {
+            channel.close();
+        }
+        if (transport != null) {
+            transport.close();
+        }
+        messageLog.close(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        history.close();
+        // interrupts whatever is still running (lanes, fan-out, background tasks) and waits for it
+        if (!services.shutdown(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            log.warn("{} threads still running after shutdown", services.getLiveThreadCount());
         }
     }
 }
\ No newline at end of file
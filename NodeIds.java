@@ -0,0 +1,52 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns node IDs as dense integer handles shared by the whole process, so the same
+ * node has the same handle in every {@link VectorClock}, {@link PeerRegistry} and
+ * {@link ChatRoom} membership. Handles are assigned on first use and never reused, so
+ * only this node, its peers and room members are given one. Clocks read from the
+ * network keep only entries that already have a handle (see
+ * {@link MessageCodec#decode(java.nio.ByteBuffer, boolean)}), so what peers send cannot
+ * grow the table. Pruning a clock entry frees the entry, not the handle.
+ */
+public final class NodeIds {
+    private static final Map<String, Integer> INDEX = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static int nextHandle;
+
+    private NodeIds() {
+    }
+
+    /** Handle of a node ID, assigned on first use. */
+    public static int handle(String nodeId) {
+        Integer handle = INDEX.get(nodeId);
+        if (handle != null) {
+            return handle;
+        }
+        synchronized (NodeIds.class) {
+            handle = INDEX.get(nodeId);
+            if (handle == null) {
+                handle = nextHandle++;
+                if (handle == names.length) {
+                    names = Arrays.copyOf(names, names.length * 2);
+                }
+                names[handle] = nodeId;
+                INDEX.put(nodeId, handle);
+            }
+            return handle;
+        }
+    }
+
+    /** Handle of a node ID, or -1 if it was never assigned one. */
+    public static int find(String nodeId) {
+        Integer handle = INDEX.get(nodeId);
+        return handle == null ? -1 : handle;
+    }
+
+    /** The node ID behind a handle returned by {@link #handle}. */
+    public static String name(int handle) {
+        return names[handle];
+    }
+}
@@ -40,7 +40,6 @@ public class NodeLauncher {
             SwingUtilities.invokeLater(() -> {
                 try {
                     ChatGUI gui = new ChatGUI(node);
-                    node.setGUI(gui);
                     gui.setVisible(true);
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -0,0 +1,27 @@
+/**
+ * Callbacks from a {@link Node} to whatever presents or acts on it: a GUI, a console,
+ * a bot. Called on the node's own threads, so implementations must return quickly and
+ * hand anything slow, or anything touching a UI toolkit, to their own thread; see
+ * {@link UiEventBus}. All methods do nothing by default.
+ */
+public interface NodeListener {
+    /** A chat or group message from another node, in causal order. */
+    default void messageReceived(Message message) {
+    }
+
+    /** A chat or group message this node sent. */
+    default void messageSent(Message message) {
+    }
+
+    /** The node's groups or their members changed. */
+    default void groupsChanged() {
+    }
+
+    /** Text meant for the user. */
+    default void notice(String text) {
+    }
+
+    /** A peer became ACTIVE, SUSPECTED or INACTIVE. */
+    default void peerStatusChanged(String peerId, NodeStatus status) {
+    }
+}
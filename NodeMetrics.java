@@ -0,0 +1,283 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for a node's packet and message paths, kept only when
+ * {@code chat.metrics.enabled} is set. Everything is recorded without locks from the
+ * threads doing the work and read as a {@link #snapshot()}, which is also published as
+ * the JMX bean {@code chat:type=Node,name=<nodeId>} and, if {@code chat.metrics.dumpIntervalMs}
+ * is positive, printed at that interval.
+ *
+ * Latencies are reported in microseconds:
+ * <ul>
+ *   <li>receiveToDecode: from a datagram arriving to its messages being decoded</li>
+ *   <li>decodeToDispatch: a decoded message waiting for its dispatch lane</li>
+ *   <li>send: sealing a frame and handing it to the transport or reliable channel</li>
+ *   <li>fanout: sending one group message to all the members this node serves</li>
+ *   <li>rtt: acknowledgement round trips measured by the reliable channels</li>
+ * </ul>
+ */
+public class NodeMetrics {
+    private static final Log LOG = Log.get("NodeMetrics");
+
+    public static final boolean ENABLED = Boolean.getBoolean("chat.metrics.enabled");
+    public static final long DUMP_INTERVAL = Long.getLong("chat.metrics.dumpIntervalMs", 10000);
+
+    /** Traffic exchanged with one peer. */
+    public static final class PeerStats {
+        final LongAdder packetsSent = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder packetsReceived = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+        final LongAdder messagesReceived = new LongAdder();
+
+        public long getPacketsSent() { return packetsSent.sum(); }
+        public long getBytesSent() { return bytesSent.sum(); }
+        public long getPacketsReceived() { return packetsReceived.sum(); }
+        public long getBytesReceived() { return bytesReceived.sum(); }
+        public long getMessagesReceived() { return messagesReceived.sum(); }
+    }
+
+    private final String nodeId;
+    private final Function<String, ReliableChannel> channelOf;
+    private final Map<String, PeerStats> peers = new ConcurrentHashMap<>();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder messagesDecoded = new LongAdder();
+    private final LongAdder duplicatePackets = new LongAdder();
+    private final LongAdder rejectedPackets = new LongAdder();
+    private final LatencyHistogram receiveToDecode = new LatencyHistogram();
+    private final LatencyHistogram decodeToDispatch = new LatencyHistogram();
+    private final LatencyHistogram send = new LatencyHistogram();
+    private final LatencyHistogram fanout = new LatencyHistogram();
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private ObjectName objectName;
+    private TimerWheel.Timeout dumpTimer;
+
+    /**
+     * @param channelOf the reliable channel to a peer, or null if it has none; supplies
+     *                  the retransmission and smoothed RTT figures of each peer
+     */
+    public NodeMetrics(String nodeId, Function<String, ReliableChannel> channelOf) {
+        this.nodeId = nodeId;
+        this.channelOf = channelOf;
+    }
+
+    public void packetReceived(int bytes) {
+        packetsReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    /** A received packet, once its sender is known from what it decoded to. */
+    public void packetDecoded(String peerId, int bytes, int messages, long receivedNanos) {
+        PeerStats stats = peer(peerId);
+        stats.packetsReceived.increment();
+        stats.bytesReceived.add(bytes);
+        stats.messagesReceived.add(messages);
+        messagesDecoded.add(messages);
+        receiveToDecode.recordSince(receivedNanos);
+    }
+
+    public void packetSent(String peerId, int bytes) {
+        packetsSent.increment();
+        bytesSent.add(bytes);
+        PeerStats stats = peer(peerId);
+        stats.packetsSent.increment();
+        stats.bytesSent.add(bytes);
+    }
+
+    /** A packet repeating one already received, e.g. a retransmission whose ack was lost. */
+    public void duplicatePacket() {
+        duplicatePackets.increment();
+    }
+
+    /** A packet that failed authentication or decryption. */
+    public void rejectedPacket() {
+        rejectedPackets.increment();
+    }
+
+    public LatencyHistogram getDecodeToDispatch() { return decodeToDispatch; }
+    public LatencyHistogram getSend() { return send; }
+    public LatencyHistogram getFanout() { return fanout; }
+    public LatencyHistogram getReceiveToDecode() { return receiveToDecode; }
+    public LatencyHistogram getRtt() { return rtt; }
+
+    /** Records an acknowledgement round trip, in milliseconds. */
+    public void rttSampled(long millis) {
+        rtt.record(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /** Per-peer stats, or null if nothing was exchanged with the peer yet. */
+    public PeerStats getPeerStats(String peerId) {
+        return peers.get(peerId);
+    }
+
+    private PeerStats peer(String peerId) {
+        PeerStats stats = peers.get(peerId);
+        return stats != null ? stats : peers.computeIfAbsent(peerId, id -> new PeerStats());
+    }
+
+    /**
+     * All current figures by name: counters, then each latency as count, mean, p50, p99,
+     * p999 and max, then "peer.<id>.*" for every peer. Loss is the share of packets to a
+     * peer that had to be retransmitted.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("packetsReceived", packetsReceived.sum());
+        values.put("bytesReceived", bytesReceived.sum());
+        values.put("packetsSent", packetsSent.sum());
+        values.put("bytesSent", bytesSent.sum());
+        values.put("messagesDecoded", messagesDecoded.sum());
+        values.put("duplicatePackets", duplicatePackets.sum());
+        values.put("rejectedPackets", rejectedPackets.sum());
+        latency(values, "receiveToDecode", receiveToDecode);
+        latency(values, "decodeToDispatch", decodeToDispatch);
+        latency(values, "send", send);
+        latency(values, "fanout", fanout);
+        latency(values, "rtt", rtt);
+        for (Map.Entry<String, PeerStats> entry : new TreeMap<>(peers).entrySet()) {
+            String prefix = "peer." + entry.getKey() + ".";
+            PeerStats stats = entry.getValue();
+            values.put(prefix + "packetsSent", stats.getPacketsSent());
+            values.put(prefix + "bytesSent", stats.getBytesSent());
+            values.put(prefix + "packetsReceived", stats.getPacketsReceived());
+            values.put(prefix + "bytesReceived", stats.getBytesReceived());
+            values.put(prefix + "messagesReceived", stats.getMessagesReceived());
+            ReliableChannel channel = channelOf.apply(entry.getKey());
+            long retransmitted = channel == null ? 0 : channel.getRetransmittedCount();
+            values.put(prefix + "retransmitted", retransmitted);
+            values.put(prefix + "loss", stats.getPacketsSent() == 0 ? 0.0
+                : (double) retransmitted / stats.getPacketsSent());
+            values.put(prefix + "srttMillis", channel == null ? 0.0 : channel.getSmoothedRttMillis());
+            values.put(prefix + "rttVarMillis", channel == null ? 0.0 : channel.getRttVariationMillis());
+        }
+        return values;
+    }
+
+    private static void latency(Map<String, Object> values, String name, LatencyHistogram histogram) {
+        values.put(name + ".count", histogram.getCount());
+        values.put(name + ".meanMicros", histogram.getMeanNanos() / 1000);
+        values.put(name + ".p50Micros", histogram.getPercentileNanos(0.5) / 1000);
+        values.put(name + ".p99Micros", histogram.getPercentileNanos(0.99) / 1000);
+        values.put(name + ".p999Micros", histogram.getPercentileNanos(0.999) / 1000);
+        values.put(name + ".maxMicros", histogram.getMaxNanos() / 1000);
+    }
+
+    /** The snapshot on one line, as "name=value" pairs. */
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(entry.getKey()).append('=');
+            Object value = entry.getValue();
+            text.append(value instanceof Double ? String.format("%.3f", (Double) value) : value);
+        }
+        return text.toString();
+    }
+
+    /** Registers the JMX bean and starts the periodic dump, if one is configured. */
+    public synchronized void start(TimerWheel timer) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("chat:type=Node,name=" + ObjectName.quote(nodeId));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new Bean(), name);
+                objectName = name;
+            }
+        } catch (JMException e) {
+            LOG.warn("Could not register metrics of {}", nodeId, e);
+        }
+        if (DUMP_INTERVAL > 0) {
+            dumpTimer = timer.scheduleAtFixedRate(
+                () -> LOG.info("Metrics of {}: {}", nodeId, format()),
+                DUMP_INTERVAL, DUMP_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (dumpTimer != null) {
+            dumpTimer.cancel();
+            dumpTimer = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOG.warn("Could not unregister metrics of {}", nodeId, e);
+            }
+            objectName = null;
+        }
+    }
+
+    /** Read-only view of the snapshot; peers appear as attributes once they exchange traffic. */
+    private final class Bean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(action);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(NodeMetrics.class.getName(), "Metrics of chat node " + nodeId,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
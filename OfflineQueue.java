@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Messages waiting for peers that are not reachable, kept on disk so they survive a
+ * restart of this node. Each peer has an append-only file of length-prefixed encoded
+ * messages under the queue directory, holding at most a fixed number of messages.
+ * Draining a peer removes a message only once it has been sent; the file is rewritten
+ * with whatever is left afterwards, so a crash part-way repeats messages rather than
+ * losing them.
+ */
+public class OfflineQueue {
+    private static final Log LOG = Log.get("OfflineQueue");
+
+    private static final String SUFFIX = ".queue";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final boolean sync;
+    private final int maxPerPeer;
+    private final Map<String, List<Message>> queues = new ConcurrentHashMap<>();
+
+    /**
+     * @param sync force every append to the storage device instead of leaving it in the
+     *             OS page cache; survives power loss, not only process crashes
+     * @param maxPerPeer messages kept for one peer; further ones are refused
+     */
+    public OfflineQueue(Path directory, boolean sync, int maxPerPeer) throws IOException {
+        this.directory = directory;
+        this.sync = sync;
+        this.maxPerPeer = maxPerPeer;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String peerId = URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()),
+                    StandardCharsets.UTF_8);
+                List<Message> messages = load(file);
+                if (!messages.isEmpty()) {
+                    queues.put(peerId, messages);
+                }
+            }
+        }
+    }
+
+    private static List<Message> load(Path file) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                // torn final record from a crash mid-append
+                LOG.warn("Ignoring truncated record in {}", file);
+                break;
+            }
+            ByteBuffer record = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            try {
+                messages.add(MessageCodec.decode(record));
+            } catch (IOException e) {
+                LOG.warn("Skipping unreadable record in {}", file, e);
+            }
+        }
+        return messages;
+    }
+
+    /** Appends a message for the peer. @throws IOException if the peer's queue is full */
+    public void add(String peerId, Message message) throws IOException {
+        byte[] bytes = MessageCodec.toBytes(message);
+        List<Message> queue = queues.computeIfAbsent(peerId, id -> new ArrayList<>());
+        synchronized (queue) {
+            if (queue.size() >= maxPerPeer) {
+                throw new IOException("Offline queue for " + peerId + " is full (" + maxPerPeer + " messages)");
+            }
+            try (FileChannel channel = FileChannel.open(fileFor(peerId),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+                record.putInt(bytes.length).put(bytes).flip();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+            }
+            queue.add(message);
+        }
+    }
+
+    /**
+     * Hands the peer's messages, oldest first, to {@code sender} until it refuses one, and
+     * removes those it accepted. Returns how many were accepted.
+     */
+    public int drain(String peerId, Predicate<Message> sender) throws IOException {
+        List<Message> queue = queues.get(peerId);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            int accepted = 0;
+            while (accepted < queue.size() && sender.test(queue.get(accepted))) {
+                accepted++;
+            }
+            if (accepted > 0) {
+                queue.subList(0, accepted).clear();
+                rewrite(peerId, queue);
+            }
+            return accepted;
+        }
+    }
+
+    /** Replaces the peer's file with the given messages, or deletes it if there are none. */
+    private void rewrite(String peerId, List<Message> messages) throws IOException {
+        Path file = fileFor(peerId);
+        if (messages.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Message message : messages) {
+                byte[] bytes = MessageCodec.toBytes(message);
+                ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+                record.putInt(bytes.length).put(bytes).flip();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int size(String peerId) {
+        List<Message> queue = queues.get(peerId);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /** Peers that currently have messages waiting. */
+    public Set<String> getPeers() {
+        Set<String> peers = ConcurrentHashMap.newKeySet();
+        for (String peerId : queues.keySet()) {
+            if (size(peerId) > 0) {
+                peers.add(peerId);
+            }
+        }
+        return peers;
+    }
+
+    private Path fileFor(String peerId) {
+        return directory.resolve(URLEncoder.encode(peerId, StandardCharsets.UTF_8) + SUFFIX);
+    }
+}
@@ -0,0 +1,181 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Packs the messages queued for one peer into MTU-sized frames. The first message of a
+ * frame starts the flush window; the frame goes out when the window expires or when the
+ * next message would not fit, so a burst costs one encryption and one send per frame
+ * instead of per message.
+ *
+ * The batcher's monitor only guards the frame being filled. A finished frame is swapped
+ * out into a ready queue and sealed and sent after the monitor is released. Whoever holds
+ * the send lock sends the whole queue in order; others leave their frames to it rather
+ * than wait, so enqueuing never waits for another thread's I/O.
+ */
+public class OutboundBatcher {
+    private static final Log LOG = Log.get("OutboundBatcher");
+
+    public interface FrameSink {
+        /** @param carriesData false for frames holding only heartbeats, which need no retransmission */
+        void sendFrame(String peerId, ByteBuffer frame, boolean carriesData) throws Exception;
+    }
+
+    private final String peerId;
+    private final FrameSink sink;
+    private final TimerWheel timer;
+    private final long windowMicros;
+    private final byte frameFlags;
+    private final int maxFrameBytes;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // the rest guarded by this
+    private ByteBuffer frame;
+    private int count;
+    private boolean carriesData;
+    private final ArrayDeque<Ready> ready = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> spareFrames = new ArrayDeque<>();
+    private volatile long lastDataFlushTime;
+
+    private static final class Ready {
+        final ByteBuffer frame;
+        final boolean carriesData;
+        // a frame buffer to reuse, rather than an unbatched message's own copy
+        final boolean pooled;
+
+        Ready(ByteBuffer frame, boolean carriesData, boolean pooled) {
+            this.frame = frame;
+            this.carriesData = carriesData;
+            this.pooled = pooled;
+        }
+    }
+
+    public OutboundBatcher(String peerId, FrameSink sink, TimerWheel timer,
+                           long windowMicros, int maxFrameBytes, byte frameFlags) {
+        this.peerId = peerId;
+        this.sink = sink;
+        this.timer = timer;
+        this.windowMicros = windowMicros;
+        this.frameFlags = frameFlags;
+        this.maxFrameBytes = maxFrameBytes;
+        this.frame = ByteBuffer.allocate(maxFrameBytes);
+    }
+
+    public void enqueue(Message message) throws Exception {
+        boolean send;
+        synchronized (this) {
+            if (!append(message)) {
+                finishFrame();
+                if (!append(message)) {
+                    // larger than a frame on its own: send it unbatched, after what came before
+                    ByteBuffer encoded = MessageCodec.encodeReusable(message);
+                    ByteBuffer copy = ByteBuffer.allocate(encoded.remaining());
+                    copy.put(encoded).flip();
+                    ready.add(new Ready(copy, message.getType() != MessageType.HEARTBEAT, false));
+                }
+            }
+            if (windowMicros <= 0) {
+                finishFrame();
+            } else if (count == 1) {
+                timer.schedule(this::flushQuietly, windowMicros, TimeUnit.MICROSECONDS);
+            }
+            send = !ready.isEmpty();
+        }
+        if (send) {
+            sendReady();
+        }
+    }
+
+    private boolean append(Message message) {
+        if (count == 0) {
+            frame.clear();
+            frame.put(MessageCodec.FRAME_MARKER).put(frameFlags).putShort((short) 0);
+        }
+        int start = frame.position();
+        try {
+            frame.position(start + 2);
+            MessageCodec.encode(message, frame);
+            frame.putShort(start, (short) (frame.position() - start - 2));
+        } catch (BufferOverflowException | IllegalArgumentException e) {
+            frame.position(start);
+            return false;
+        }
+        count++;
+        carriesData |= message.getType() != MessageType.HEARTBEAT;
+        return true;
+    }
+
+    public void flush() throws Exception {
+        synchronized (this) {
+            finishFrame();
+        }
+        sendReady();
+    }
+
+    /** Moves the frame being filled to the ready queue and starts an empty one. */
+    private void finishFrame() {
+        if (count == 0) {
+            return;
+        }
+        frame.putShort(2, (short) count);
+        frame.flip();
+        ready.add(new Ready(frame, carriesData, true));
+        if (carriesData) {
+            lastDataFlushTime = System.currentTimeMillis();
+        }
+        ByteBuffer next = spareFrames.poll();
+        frame = next != null ? next : ByteBuffer.allocate(maxFrameBytes);
+        count = 0;
+        carriesData = false;
+    }
+
+    /** Sends the ready frames in order; called without holding the monitor. */
+    private void sendReady() throws Exception {
+        while (sendLock.tryLock()) {
+            try {
+                Ready next;
+                while ((next = pollReady()) != null) {
+                    try {
+                        sink.sendFrame(peerId, next.frame, next.carriesData);
+                    } finally {
+                        if (next.pooled) {
+                            synchronized (this) {
+                                spareFrames.add(next.frame);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                sendLock.unlock();
+            }
+            // frames queued while the lock was being released were left to us
+            synchronized (this) {
+                if (ready.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized Ready pollReady() {
+        return ready.poll();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            LOG.warn("Failed to flush frame to {}: {}", peerId, e.getMessage());
+        }
+    }
+
+    /** Time the last frame carrying more than heartbeats was sent; such frames stand in for heartbeats. */
+    public long getLastDataFlushTime() {
+        return lastDataFlushTime;
+    }
+
+    public synchronized boolean hasPending() {
+        return count > 0 || !ready.isEmpty();
+    }
+}
@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Packet encryption with per-thread cached {@link Cipher} instances.
+ *
+ * Two packet formats are understood:
+ * <ul>
+ *   <li>ECB: the legacy format, raw AES/ECB/PKCS5Padding ciphertext with no header.</li>
+ *   <li>GCM: {@code [version 0x02][12-byte nonce][ciphertext + 16-byte tag]}. The tag is
+ *       verified before anything is handed to the decoder, so forged or corrupted packets
+ *       are dropped without being parsed.</li>
+ * </ul>
+ * Every packet gets a fresh 96-bit random nonce. The key is shared by all nodes and a
+ * counter would restart with each process, so only randomness over the whole nonce keeps
+ * nonces apart across nodes and restarts.
+ */
+public final class PacketCrypto {
+    public enum Mode {
+        ECB,
+        GCM
+    }
+
+    /** Advertised in heartbeat content by nodes able to receive GCM packets. */
+    public static final String CAPABILITY_GCM = "gcm";
+
+    static final byte GCM_VERSION = 0x02;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int GCM_OVERHEAD = 1 + NONCE_LENGTH + TAG_LENGTH;
+
+    private final SecretKey key;
+    private final boolean acceptEcb;
+    // per thread, since a shared SecureRandom serialises every sender on its lock
+    private final ThreadLocal<SecureRandom> nonceRandom = ThreadLocal.withInitial(SecureRandom::new);
+    private final ThreadLocal<Cipher> ecbEncrypt;
+    private final ThreadLocal<Cipher> ecbDecrypt;
+    private final ThreadLocal<Cipher> gcm;
+    private final ThreadLocal<byte[]> nonceScratch = ThreadLocal.withInitial(() -> new byte[NONCE_LENGTH]);
+
+    /**
+     * @param acceptEcb whether unauthenticated legacy packets are still decrypted; turn
+     *                  off once every node sends GCM
+     */
+    public PacketCrypto(SecretKey key, boolean acceptEcb) {
+        this.key = key;
+        this.acceptEcb = acceptEcb;
+        this.ecbEncrypt = ThreadLocal.withInitial(() -> newCipher("AES/ECB/PKCS5Padding", Cipher.ENCRYPT_MODE));
+        this.ecbDecrypt = ThreadLocal.withInitial(() -> newCipher("AES/ECB/PKCS5Padding", Cipher.DECRYPT_MODE));
+        this.gcm = ThreadLocal.withInitial(() -> newCipher("AES/GCM/NoPadding", -1));
+    }
+
+    private Cipher newCipher(String transformation, int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance(transformation);
+            if (mode != -1) {
+                cipher.init(mode, key);
+            }
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cipher unavailable: " + transformation, e);
+        }
+    }
+
+    /** Upper bound on the sealed size of a plaintext of the given length. */
+    public static int maxSealedSize(int plaintextLength) {
+        return Math.max(GCM_OVERHEAD + plaintextLength, (plaintextLength / 16 + 1) * 16);
+    }
+
+    /** Encrypts the plaintext's remaining bytes into {@code out} at its position. */
+    public void seal(ByteBuffer plaintext, ByteBuffer out, Mode mode) throws GeneralSecurityException {
+        if (mode == Mode.ECB) {
+            // doFinal leaves the cipher initialised with the same key, so no re-init is needed
+            ecbEncrypt.get().doFinal(plaintext, out);
+            return;
+        }
+        byte[] nonce = nextNonce();
+        Cipher cipher = gcm.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        out.put(GCM_VERSION);
+        out.put(nonce);
+        cipher.doFinal(plaintext, out);
+    }
+
+    /**
+     * Decrypts the packet's remaining bytes into {@code out} and returns the mode it was
+     * sealed with. Returns null if the packet must be dropped: a GCM packet whose tag does
+     * not verify while ECB is no longer accepted. A GCM-looking packet that fails
+     * verification is retried as ECB, since legacy ciphertext can start with the same byte.
+     *
+     * @throws GeneralSecurityException if ECB decryption fails
+     */
+    public Mode open(ByteBuffer packet, ByteBuffer out) throws GeneralSecurityException {
+        int start = packet.position();
+        int outStart = out.position();
+        int length = packet.remaining();
+        if (length >= GCM_OVERHEAD && packet.get(start) == GCM_VERSION) {
+            byte[] nonce = nonceScratch.get();
+            packet.get(start + 1, nonce);
+            Cipher cipher = gcm.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            packet.position(start + 1 + NONCE_LENGTH);
+            try {
+                cipher.doFinal(packet, out);
+                return Mode.GCM;
+            } catch (AEADBadTagException e) {
+                packet.position(start);
+                out.position(outStart);
+            }
+        }
+        if (!acceptEcb) {
+            return null;
+        }
+        if (length == 0 || length % 16 != 0) {
+            throw new GeneralSecurityException("Invalid ECB packet length: " + length);
+        }
+        try {
+            ecbDecrypt.get().doFinal(packet, out);
+            return Mode.ECB;
+        } catch (GeneralSecurityException e) {
+            // don't trust the cipher's state after a padding failure
+            ecbDecrypt.remove();
+            throw e;
+        }
+    }
+
+    private byte[] nextNonce() {
+        byte[] nonce = nonceScratch.get();
+        nonceRandom.get().nextBytes(nonce);
+        return nonce;
+    }
+}
@@ -1,22 +1,38 @@
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PeerInfo {
     private String peerId;
+    private final int handle;
     private InetAddress address;
     private int port;
-    private NodeStatus status;
+    private InetSocketAddress socketAddress;
+    // written by heartbeats on the dispatch lanes and by health checks on the timer
+    private final AtomicReference<NodeStatus> status;
+    private volatile PacketCrypto.Mode cryptoMode = PacketCrypto.Mode.ECB;
+    private volatile boolean reliable;
+    private volatile boolean historySync;
+    private volatile PhiAccrualFailureDetector failureDetector;
 
     public PeerInfo(String peerId, InetAddress address, int port, NodeStatus status) {
         this.peerId = peerId;
+        this.handle = NodeIds.handle(peerId);
         this.address = address;
         this.port = port;
-        this.status = status;
+        this.socketAddress = new InetSocketAddress(address, port);
+        this.status = new AtomicReference<>(status);
     }
 
     public String getPeerId() {
         return peerId;
     }
 
+    /** The peer's {@link NodeIds} handle, which is also its index in every {@link VectorClock}. */
+    public int getHandle() {
+        return handle;
+    }
+
     public InetAddress getAddress() {
         return address;
     }
@@ -25,11 +41,55 @@ public class PeerInfo {
         return port;
     }
 
+    public InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
     public NodeStatus getStatus() {
-        return status;
+        return status.get();
     }
 
     public void setStatus(NodeStatus status) {
-        this.status = status;
+        this.status.set(status);
+    }
+
+    /** Changes the status only if it is still {@code expected}, so a transition is applied and reported once. */
+    public boolean compareAndSetStatus(NodeStatus expected, NodeStatus status) {
+        return this.status.compareAndSet(expected, status);
+    }
+
+    public PacketCrypto.Mode getCryptoMode() {
+        return cryptoMode;
+    }
+
+    public void setCryptoMode(PacketCrypto.Mode cryptoMode) {
+        this.cryptoMode = cryptoMode;
+    }
+
+    /** Whether the peer understands {@link ReliableChannel} packets. */
+    public boolean isReliable() {
+        return reliable;
+    }
+
+    public void setReliable(boolean reliable) {
+        this.reliable = reliable;
+    }
+
+    /** Whether the peer takes part in {@link HistorySync}. */
+    public boolean isHistorySync() {
+        return historySync;
+    }
+
+    public void setHistorySync(boolean historySync) {
+        this.historySync = historySync;
+    }
+
+    /** Tracks the peer's heartbeats; null until the first one arrives. */
+    public PhiAccrualFailureDetector getFailureDetector() {
+        return failureDetector;
+    }
+
+    public void setFailureDetector(PhiAccrualFailureDetector failureDetector) {
+        this.failureDetector = failureDetector;
     }
 }
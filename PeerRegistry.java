@@ -0,0 +1,82 @@
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The peers a node knows, indexed by their {@link NodeIds} handle. Looking a peer up by
+ * handle is one array read, by ID one read of the interning map, by socket address one
+ * hash lookup; {@link #toArray()} is a dense array for health checks and other scans.
+ * Peers are added rarely and never removed, so the indexes are replaced on every change
+ * and read without locks.
+ */
+public class PeerRegistry {
+    private static final PeerInfo[] EMPTY = new PeerInfo[0];
+
+    private volatile PeerInfo[] byHandle = EMPTY;
+    private volatile PeerInfo[] all = EMPTY;
+    private volatile Map<InetSocketAddress, PeerInfo> byAddress = Collections.emptyMap();
+
+    /** Adds a peer, replacing and returning any previous one with the same ID. */
+    public synchronized PeerInfo add(PeerInfo peer) {
+        int handle = peer.getHandle();
+        PeerInfo[] slots = Arrays.copyOf(byHandle, Math.max(byHandle.length, handle + 1));
+        PeerInfo previous = slots[handle];
+        slots[handle] = peer;
+        PeerInfo[] dense;
+        if (previous == null) {
+            dense = Arrays.copyOf(all, all.length + 1);
+            dense[dense.length - 1] = peer;
+        } else {
+            dense = all.clone();
+            dense[Arrays.asList(dense).indexOf(previous)] = peer;
+        }
+        Map<InetSocketAddress, PeerInfo> addresses = new HashMap<>(byAddress);
+        if (previous != null) {
+            addresses.remove(previous.getSocketAddress(), previous);
+        }
+        addresses.put(peer.getSocketAddress(), peer);
+        byHandle = slots;
+        all = dense;
+        byAddress = addresses;
+        return previous;
+    }
+
+    public PeerInfo get(int handle) {
+        PeerInfo[] slots = byHandle;
+        return handle >= 0 && handle < slots.length ? slots[handle] : null;
+    }
+
+    public PeerInfo get(String peerId) {
+        return get(NodeIds.find(peerId));
+    }
+
+    /** The peer sending from the given address, or null if it is not a known peer. */
+    public PeerInfo get(InetSocketAddress address) {
+        return byAddress.get(address);
+    }
+
+    public boolean contains(String peerId) {
+        return get(peerId) != null;
+    }
+
+    public int size() {
+        return all.length;
+    }
+
+    /** Every peer in the order they were added. The array is shared: do not modify it. */
+    public PeerInfo[] toArray() {
+        return all;
+    }
+
+    /** A copy of the peers by ID, in the order they were added. */
+    public Map<String, PeerInfo> asMap() {
+        Map<String, PeerInfo> map = new LinkedHashMap<>();
+        for (PeerInfo peer : all) {
+            map.put(peer.getPeerId(), peer);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+}
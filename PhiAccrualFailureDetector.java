@@ -0,0 +1,91 @@
+/**
+ * Phi accrual failure detector (Hayashibara et al.) for one peer.
+ *
+ * Keeps a sliding window of heartbeat inter-arrival times and reports phi, the
+ * -log10 probability that a heartbeat would still arrive given the time since the last
+ * one. Phi grows smoothly while a peer is silent, so callers pick thresholds instead of
+ * fixed timeouts, and the detector adapts to how regular the peer's traffic really is.
+ */
+public class PhiAccrualFailureDetector {
+    private final long[] intervals;
+    private final double minStdDeviationMillis;
+    private final long acceptablePauseMillis;
+    private final long minSampleIntervalMillis;
+    private int count;
+    private int next;
+    private double sum;
+    private double sumOfSquares;
+    private long lastArrival = -1;
+
+    /**
+     * @param windowSize              number of inter-arrival samples kept
+     * @param expectedIntervalMillis  seeds the window before real samples arrive
+     * @param minStdDeviationMillis   floor on the deviation so very regular peers are not
+     *                                suspected after a tiny delay
+     * @param acceptablePauseMillis   extra silence tolerated on top of the mean (GC, jitter)
+     * @param minSampleIntervalMillis arrivals closer together than this refresh the last
+     *                                arrival time without being sampled, so bursts of data
+     *                                do not shrink the expected heartbeat interval
+     */
+    public PhiAccrualFailureDetector(int windowSize, long expectedIntervalMillis, long minStdDeviationMillis,
+                                     long acceptablePauseMillis, long minSampleIntervalMillis) {
+        this.intervals = new long[windowSize];
+        this.minStdDeviationMillis = minStdDeviationMillis;
+        this.acceptablePauseMillis = acceptablePauseMillis;
+        this.minSampleIntervalMillis = minSampleIntervalMillis;
+        long deviation = expectedIntervalMillis / 4;
+        record(expectedIntervalMillis - deviation);
+        record(expectedIntervalMillis + deviation);
+    }
+
+    public synchronized void heartbeat(long now) {
+        if (lastArrival >= 0) {
+            long interval = now - lastArrival;
+            if (interval < minSampleIntervalMillis) {
+                lastArrival = now;
+                return;
+            }
+            record(interval);
+        }
+        lastArrival = now;
+    }
+
+    private void record(long interval) {
+        if (count == intervals.length) {
+            long evicted = intervals[next];
+            sum -= evicted;
+            sumOfSquares -= (double) evicted * evicted;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        sumOfSquares += (double) interval * interval;
+    }
+
+    /** Suspicion level at the given time; 0 until the first heartbeat has been seen. */
+    public synchronized double phi(long now) {
+        if (lastArrival < 0) {
+            return 0.0;
+        }
+        double mean = sum / count;
+        double variance = Math.max(0.0, sumOfSquares / count - mean * mean);
+        double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviationMillis);
+        return phi(now - lastArrival, mean + acceptablePauseMillis, stdDeviation);
+    }
+
+    /** Logistic approximation of the normal CDF, as used by Akka and Cassandra. */
+    private static double phi(long timeDiff, double mean, double stdDeviation) {
+        double y = (timeDiff - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (timeDiff > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public synchronized long getLastArrival() {
+        return lastArrival;
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A bounded processing stage made of independent lanes, each drained by its own thread.
+ * Items submitted with the same key always land in the same lane, so they are handled
+ * in submission order; different keys proceed in parallel.
+ */
+public class PipelineStage<T> {
+    private static final Log LOG = Log.get("PipelineStage");
+
+    public enum DropPolicy {
+        /** Reject the incoming item when the lane is full. */
+        DROP_NEWEST,
+        /** Evict the oldest queued item to make room. */
+        DROP_OLDEST,
+        /** Block the submitter until there is room (backpressure). */
+        BLOCK
+    }
+
+    private final String name;
+    // items, or Timed items while wait times are recorded
+    private final List<BlockingQueue<Object>> lanes;
+    private final Thread[] workers;
+    private final DropPolicy dropPolicy;
+    private final Consumer<T> handler;
+    private final Consumer<T> onDrop;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile LatencyHistogram waitTime;
+    private volatile boolean running = true;
+
+    private static final class Timed {
+        final Object item;
+        final long queuedAt;
+
+        Timed(Object item, long queuedAt) {
+            this.item = item;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    public PipelineStage(String name, int laneCount, int laneCapacity, DropPolicy dropPolicy,
+                         Consumer<T> handler, Consumer<T> onDrop) {
+        this(name, laneCount, laneCapacity, dropPolicy, handler, onDrop, Thread::new);
+    }
+
+    /** Lane workers are created by the given factory, e.g. a {@link ServiceScope}. */
+    public PipelineStage(String name, int laneCount, int laneCapacity, DropPolicy dropPolicy,
+                         Consumer<T> handler, Consumer<T> onDrop, ThreadFactory threadFactory) {
+        this.name = name;
+        this.dropPolicy = dropPolicy;
+        this.handler = handler;
+        this.onDrop = onDrop;
+        this.lanes = new ArrayList<>(laneCount);
+        this.workers = new Thread[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            BlockingQueue<Object> lane = new ArrayBlockingQueue<>(laneCapacity);
+            lanes.add(lane);
+            workers[i] = threadFactory.newThread(() -> drain(lane));
+            workers[i].setName(name + "-" + i);
+        }
+    }
+
+    /**
+     * Records in the histogram how long each item waits in its lane before the handler
+     * starts on it. Costs an allocation per item, so is off unless set.
+     */
+    public void setWaitTimeHistogram(LatencyHistogram waitTime) {
+        this.waitTime = waitTime;
+    }
+
+    public void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues an item on the lane chosen by the key. Returns false if the item was dropped
+     * because of the drop policy.
+     */
+    public boolean submit(Object key, T item) {
+        int hash = key == null ? 0 : key.hashCode();
+        BlockingQueue<Object> lane = lanes.get(((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % lanes.size());
+        submitted.increment();
+        Object entry = waitTime == null ? item : new Timed(item, System.nanoTime());
+        switch (dropPolicy) {
+            case BLOCK:
+                try {
+                    lane.put(entry);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop(item);
+                    return false;
+                }
+            case DROP_OLDEST:
+                while (!lane.offer(entry)) {
+                    Object evicted = lane.poll();
+                    if (evicted != null) {
+                        drop(unwrap(evicted));
+                    }
+                }
+                return true;
+            default:
+                if (lane.offer(entry)) {
+                    return true;
+                }
+                drop(item);
+                return false;
+        }
+    }
+
+    private void drop(T item) {
+        dropped.increment();
+        if (onDrop != null) {
+            onDrop.accept(item);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T unwrap(Object entry) {
+        return (T) (entry instanceof Timed ? ((Timed) entry).item : entry);
+    }
+
+    private void drain(BlockingQueue<Object> lane) {
+        while (running) {
+            try {
+                Object entry = lane.poll(1, TimeUnit.SECONDS);
+                if (entry != null) {
+                    LatencyHistogram histogram = waitTime;
+                    if (histogram != null && entry instanceof Timed) {
+                        histogram.recordSince(((Timed) entry).queuedAt);
+                    }
+                    handler.accept(unwrap(entry));
+                    processed.increment();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                LOG.error("{} handler failed", name, e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    public String getName() { return name; }
+    public long getSubmittedCount() { return submitted.sum(); }
+    public long getProcessedCount() { return processed.sum(); }
+    public long getDroppedCount() { return dropped.sum(); }
+
+    /** Total number of items currently queued across all lanes. */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Object> lane : lanes) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[depth=" + getQueueDepth() + ", submitted=" + getSubmittedCount()
+            + ", processed=" + getProcessedCount() + ", dropped=" + getDroppedCount() + "]";
+    }
+}
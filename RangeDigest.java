@@ -0,0 +1,164 @@
+import java.util.Arrays;
+
+/**
+ * A set of 64-bit message fingerprints that can summarise any range of the fingerprint
+ * space by how many members fall in it and the XOR of those members. Two sets agree on
+ * a range, with overwhelming probability, exactly when both numbers match, so peers
+ * find what differs between their histories by comparing summaries and only splitting
+ * the ranges that disagree; see {@link HistorySync}.
+ *
+ * Ranges are addressed like a 16-ary tree over the fingerprint bits: level 0 is the
+ * whole space, and the range at level L with prefix P holds the fingerprints whose top
+ * 4L bits equal P. Each fingerprint carries the log position of its message.
+ *
+ * Members are kept in sorted arrays with running XORs, so a summary is two binary
+ * searches. New members are buffered and merged in on the next query.
+ */
+public class RangeDigest {
+    public static final int MAX_LEVEL = 16;
+
+    // fingerprints with the sign bit flipped, so signed order is unsigned order
+    private long[] keys = new long[16];
+    private long[] positions = new long[16];
+    // xors[i] is the XOR of the first i fingerprints
+    private long[] xors = new long[17];
+    private int size;
+    private long[] pendingKeys = new long[16];
+    private long[] pendingPositions = new long[16];
+    private int pendingSize;
+
+    /** Spreads a message ID over the whole 64-bit space. */
+    public static long fingerprint(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // MurmurHash3 finaliser, so IDs differing in a few characters land far apart
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53a3b3cL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public synchronized void add(long fingerprint, long position) {
+        if (pendingSize == pendingKeys.length) {
+            pendingKeys = Arrays.copyOf(pendingKeys, pendingSize * 2);
+            pendingPositions = Arrays.copyOf(pendingPositions, pendingSize * 2);
+        }
+        pendingKeys[pendingSize] = fingerprint ^ Long.MIN_VALUE;
+        pendingPositions[pendingSize++] = position;
+    }
+
+    /** Folds buffered members into the sorted arrays. */
+    private void merge() {
+        if (pendingSize == 0) {
+            return;
+        }
+        // sort pending by key, carrying positions along
+        long[][] pending = new long[pendingSize][];
+        for (int i = 0; i < pendingSize; i++) {
+            pending[i] = new long[] {pendingKeys[i], pendingPositions[i]};
+        }
+        Arrays.sort(pending, (a, b) -> Long.compare(a[0], b[0]));
+        long[] mergedKeys = new long[Math.max(16, (size + pendingSize) * 3 / 2)];
+        long[] mergedPositions = new long[mergedKeys.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < size || j < pendingSize) {
+            if (j == pendingSize || (i < size && keys[i] < pending[j][0])) {
+                mergedKeys[n] = keys[i];
+                mergedPositions[n++] = positions[i++];
+            } else if (i < size && keys[i] == pending[j][0]) {
+                // already present; keep the first copy
+                j++;
+            } else if (n > 0 && mergedKeys[n - 1] == pending[j][0]) {
+                j++;
+            } else {
+                mergedKeys[n] = pending[j][0];
+                mergedPositions[n++] = pending[j++][1];
+            }
+        }
+        keys = mergedKeys;
+        positions = mergedPositions;
+        size = n;
+        pendingSize = 0;
+        xors = new long[keys.length + 1];
+        for (int k = 0; k < size; k++) {
+            xors[k + 1] = xors[k] ^ keys[k];
+        }
+    }
+
+    /** Index of the first member not below the flipped key. */
+    private int lowerBound(long flipped) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < flipped) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** First and one-past-last member index of a range. */
+    private int[] bounds(int level, long prefix) {
+        if (level == 0) {
+            return new int[] {0, size};
+        }
+        int shift = 64 - 4 * level;
+        long low = prefix << shift;
+        long high = shift == 0 ? low : low | ((1L << shift) - 1);
+        int from = lowerBound(low ^ Long.MIN_VALUE);
+        int to = (high ^ Long.MIN_VALUE) == Long.MAX_VALUE ? size : lowerBound((high ^ Long.MIN_VALUE) + 1);
+        return new int[] {from, to};
+    }
+
+    public synchronized int count(int level, long prefix) {
+        merge();
+        int[] bounds = bounds(level, prefix);
+        return bounds[1] - bounds[0];
+    }
+
+    /** XOR of the fingerprints in the range. */
+    public synchronized long xor(int level, long prefix) {
+        merge();
+        int[] bounds = bounds(level, prefix);
+        // the flipped sign bit cancels out over an even number of members
+        long xor = xors[bounds[1]] ^ xors[bounds[0]];
+        return (bounds[1] - bounds[0]) % 2 == 0 ? xor : xor ^ Long.MIN_VALUE;
+    }
+
+    public synchronized long[] fingerprints(int level, long prefix) {
+        merge();
+        int[] bounds = bounds(level, prefix);
+        long[] result = new long[bounds[1] - bounds[0]];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = keys[bounds[0] + i] ^ Long.MIN_VALUE;
+        }
+        return result;
+    }
+
+    /** Log position of the fingerprint's message, or -1 if it is not in the set. */
+    public synchronized long position(long fingerprint) {
+        merge();
+        long flipped = fingerprint ^ Long.MIN_VALUE;
+        int index = lowerBound(flipped);
+        return index < size && keys[index] == flipped ? positions[index] : -1;
+    }
+
+    public boolean contains(long fingerprint) {
+        return position(fingerprint) >= 0;
+    }
+
+    public synchronized int size() {
+        merge();
+        return size;
+    }
+}
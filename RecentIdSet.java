@@ -0,0 +1,34 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded set of recently seen IDs. Once full, each new ID evicts the oldest one, so
+ * memory stays fixed while duplicates arriving within the window are still caught.
+ */
+public class RecentIdSet {
+    private final Set<String> ids = ConcurrentHashMap.newKeySet();
+    private final String[] ring;
+    private int next;
+
+    public RecentIdSet(int capacity) {
+        this.ring = new String[capacity];
+    }
+
+    /** Records the ID and returns true if it had not been seen within the window. */
+    public synchronized boolean add(String id) {
+        if (!ids.add(id)) {
+            return false;
+        }
+        String evicted = ring[next];
+        if (evicted != null) {
+            ids.remove(evicted);
+        }
+        ring[next] = id;
+        next = (next + 1) % ring.length;
+        return true;
+    }
+
+    public boolean contains(String id) {
+        return ids.contains(id);
+    }
+}
@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Reliable delivery of sealed packets to one peer: per-peer sequence numbers, cumulative
+ * plus selective acks, retransmission on an RTT-based timeout and a sliding window.
+ *
+ * Each datagram is prefixed with a cleartext header in front of the crypto envelope, so a
+ * group message sealed once by {@link FanoutEngine} can still carry a different sequence
+ * number per recipient:
+ * <pre>
+ *   [0x52][flags][u32 epoch][u32 seq][u32 base][u32 ackEpoch][u32 cumAck][u64 ackBits]
+ * </pre>
+ * The epoch is chosen at random per channel so a restarted sender starts a fresh sequence
+ * space; base is the sender's oldest unacked sequence, which lets a restarted receiver
+ * pick up mid-stream. Bit i of ackBits acknowledges cumAck + 1 + i.
+ *
+ * The header is not authenticated. Forging it can at worst delay or suppress
+ * retransmissions, which an on-path attacker could do anyway by dropping packets; the
+ * payload itself is still sealed.
+ */
+public class ReliableChannel {
+    private static final Log LOG = Log.get("ReliableChannel");
+
+    public static final byte MARKER = 0x52;
+    public static final int HEADER_SIZE = 30;
+    private static final byte FLAG_SEQUENCED = 0x01;
+    private static final byte FLAG_ACK = 0x02;
+    private static final byte KNOWN_FLAGS = FLAG_SEQUENCED | FLAG_ACK;
+
+    public static final int WINDOW = 64;
+    private static final long INITIAL_RTO_MILLIS = Long.getLong("chat.rel.initialRtoMs", 1000);
+    private static final long MIN_RTO_MILLIS = Long.getLong("chat.rel.minRtoMs", 100);
+    private static final long MAX_RTO_MILLIS = Long.getLong("chat.rel.maxRtoMs", 10_000);
+    private static final long ACK_DELAY_MILLIS = Long.getLong("chat.rel.ackDelayMs", 5);
+    // acks go out immediately once this many packets are waiting to be acknowledged
+    private static final int ACK_EVERY = Integer.getInteger("chat.rel.ackEvery", 2);
+    private static final int MAX_BACKLOG = Integer.getInteger("chat.rel.backlog", 1024);
+    private static final int FAST_RETRANSMIT_THRESHOLD = 3;
+
+    private final InetSocketAddress remote;
+    private final Transport transport;
+    private final TimerWheel timer;
+
+    // sending side
+    private final int epoch = ThreadLocalRandom.current().nextInt() | 1;
+    private final Slot[] slots = new Slot[WINDOW];
+    private final ArrayDeque<byte[]> backlog = new ArrayDeque<>();
+    private int base = 1;
+    private int nextSeq = 1;
+    private double srtt;
+    private double rttvar;
+    private long rto = INITIAL_RTO_MILLIS;
+    private TimerWheel.Timeout retransmitTimer;
+    private int timerGeneration;
+    private boolean closed;
+    private long retransmitted;
+    private volatile LongConsumer rttObserver;
+
+    // receiving side; recvEpoch 0 means nothing received yet
+    private int recvEpoch;
+    private int cumAck;
+    private long ackBits;
+    private int unacked;
+    private TimerWheel.Timeout ackTimer;
+    private final ByteBuffer control = ByteBuffer.allocate(HEADER_SIZE);
+
+    // created on first use and sized to the packet, so an idle channel holds no buffers
+    private static final class Slot {
+        ByteBuffer packet;
+        int seq;
+        long sentAt;
+        boolean acked;
+        boolean retransmitted;
+        int skipped;
+    }
+
+    public ReliableChannel(InetSocketAddress remote, Transport transport, TimerWheel timer) {
+        this.remote = remote;
+        this.transport = transport;
+        this.timer = timer;
+    }
+
+    public static boolean isReliable(ByteBuffer packet) {
+        return packet.remaining() >= HEADER_SIZE && packet.get(packet.position()) == MARKER
+            && (packet.get(packet.position() + 1) & ~KNOWN_FLAGS) == 0;
+    }
+
+    /**
+     * Sends a sealed packet. Sequenced packets are kept until acknowledged and resent on
+     * timeout; when the window is full they wait in a backlog. Unsequenced packets (for
+     * example heartbeat-only frames) just carry the latest ack. Returns false if the
+     * backlog is full and the packet was dropped.
+     */
+    public synchronized boolean send(ByteBuffer sealed, boolean sequenced) throws IOException {
+        if (!sequenced) {
+            ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE + sealed.remaining());
+            writeHeader(packet, (byte) 0, 0);
+            packet.put(sealed).flip();
+            transport.send(packet, remote);
+            return true;
+        }
+        if (!backlog.isEmpty() || nextSeq - base >= WINDOW) {
+            if (backlog.size() >= MAX_BACKLOG) {
+                LOG.warn("Send backlog to {} is full, dropping packet", remote);
+                return false;
+            }
+            byte[] copy = new byte[sealed.remaining()];
+            sealed.get(copy);
+            backlog.add(copy);
+            return true;
+        }
+        transmitNew(sealed);
+        return true;
+    }
+
+    /**
+     * Sends an unsequenced packet to a peer that has no channel. The header carries no
+     * ack, so the receiver only strips it.
+     */
+    public static void sendUnsequenced(Transport transport, InetSocketAddress remote, ByteBuffer sealed)
+            throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE + sealed.remaining());
+        packet.put(MARKER).put((byte) 0).position(HEADER_SIZE);
+        packet.put(sealed).flip();
+        transport.send(packet, remote);
+    }
+
+    private void transmitNew(ByteBuffer sealed) throws IOException {
+        int seq = nextSeq++;
+        Slot slot = slots[seq & (WINDOW - 1)];
+        if (slot == null) {
+            slot = new Slot();
+            slots[seq & (WINDOW - 1)] = slot;
+        }
+        if (slot.packet == null || slot.packet.capacity() < HEADER_SIZE + sealed.remaining()) {
+            slot.packet = ByteBuffer.allocate(HEADER_SIZE + sealed.remaining());
+        }
+        slot.packet.clear();
+        slot.packet.position(HEADER_SIZE);
+        slot.packet.put(sealed).flip();
+        slot.seq = seq;
+        slot.acked = false;
+        slot.retransmitted = false;
+        slot.skipped = 0;
+        transmit(slot);
+        if (retransmitTimer == null && !closed) {
+            armRetransmitTimer(rto);
+        }
+    }
+
+    private void transmit(Slot slot) throws IOException {
+        // refresh the piggybacked ack every time the packet goes out
+        ByteBuffer packet = slot.packet;
+        packet.position(0);
+        writeHeader(packet, FLAG_SEQUENCED, slot.seq);
+        packet.position(0);
+        slot.sentAt = System.currentTimeMillis();
+        transport.send(packet.duplicate(), remote);
+    }
+
+    private void writeHeader(ByteBuffer packet, byte flags, int seq) {
+        if (recvEpoch != 0) {
+            flags |= FLAG_ACK;
+            unacked = 0;
+            if (ackTimer != null) {
+                ackTimer.cancel();
+                ackTimer = null;
+            }
+        }
+        packet.put(MARKER).put(flags)
+            .putInt(epoch).putInt(seq).putInt(base)
+            .putInt(recvEpoch).putInt(cumAck).putLong(ackBits);
+    }
+
+    private void armRetransmitTimer(long delay) {
+        int generation = ++timerGeneration;
+        retransmitTimer = timer.schedule(() -> onRetransmitTimeout(generation), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelRetransmitTimer() {
+        timerGeneration++;
+        if (retransmitTimer != null) {
+            retransmitTimer.cancel();
+            retransmitTimer = null;
+        }
+    }
+
+    private synchronized void onRetransmitTimeout(int generation) {
+        if (generation != timerGeneration) {
+            return;
+        }
+        retransmitTimer = null;
+        if (closed || base == nextSeq) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long nextDue = Long.MAX_VALUE;
+        boolean resent = false;
+        try {
+            for (int seq = base; seq != nextSeq; seq++) {
+                Slot slot = slots[seq & (WINDOW - 1)];
+                if (slot.acked) {
+                    continue;
+                }
+                if (now - slot.sentAt >= rto) {
+                    slot.retransmitted = true;
+                    retransmitted++;
+                    resent = true;
+                    transmit(slot);
+                } else {
+                    nextDue = Math.min(nextDue, slot.sentAt + rto - now);
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Retransmission to {} failed: {}", remote, e.getMessage());
+        }
+        if (resent) {
+            // exponential backoff until an ack shows the peer is keeping up again
+            rto = Math.min(rto * 2, MAX_RTO_MILLIS);
+        }
+        armRetransmitTimer(Math.max(1, Math.min(rto, nextDue)));
+    }
+
+    /**
+     * Consumes the reliability header at the packet's position, applying any piggybacked
+     * ack, and leaves the position at the sealed payload. Returns true if the packet is
+     * sequenced; it must then be passed to {@link #accept} once the payload has been
+     * authenticated.
+     */
+    public synchronized boolean onHeader(ByteBuffer packet) {
+        packet.get();
+        byte flags = packet.get();
+        packet.position(packet.position() + 12);
+        int ackEpoch = packet.getInt();
+        int ackCum = packet.getInt();
+        long ackMask = packet.getLong();
+        if ((flags & FLAG_ACK) != 0 && ackEpoch == epoch) {
+            onAck(ackCum, ackMask);
+        }
+        return (flags & FLAG_SEQUENCED) != 0;
+    }
+
+    /**
+     * Records an authenticated sequenced packet whose header starts at the given offset
+     * and schedules its ack. Returns false if it was already received and must not be
+     * delivered again.
+     */
+    public synchronized boolean accept(ByteBuffer packet, int headerOffset) {
+        int senderEpoch = packet.getInt(headerOffset + 2);
+        int seq = packet.getInt(headerOffset + 6);
+        int senderBase = packet.getInt(headerOffset + 10);
+        if (senderEpoch != recvEpoch) {
+            // new sender incarnation, or the first packet we see from it
+            recvEpoch = senderEpoch;
+            cumAck = senderBase - 1;
+            ackBits = 0;
+        }
+        int offset = seq - cumAck - 1;
+        boolean fresh = offset >= 0 && offset < 64 && (ackBits & (1L << offset)) == 0;
+        if (fresh) {
+            ackBits |= 1L << offset;
+            int contiguous = Long.numberOfTrailingZeros(~ackBits);
+            advance(contiguous);
+        }
+        // duplicates are acked again in case our earlier ack was lost
+        scheduleAck();
+        return fresh;
+    }
+
+    private void advance(int count) {
+        cumAck += count;
+        ackBits = count >= 64 ? 0 : ackBits >>> count;
+    }
+
+    private void scheduleAck() {
+        if (++unacked >= ACK_EVERY) {
+            sendAck();
+        } else if (ackTimer == null) {
+            ackTimer = timer.schedule(this::sendAckQuietly, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void sendAckQuietly() {
+        ackTimer = null;
+        if (unacked > 0) {
+            sendAck();
+        }
+    }
+
+    private void sendAck() {
+        control.clear();
+        writeHeader(control, (byte) 0, 0);
+        control.flip();
+        try {
+            transport.send(control, remote);
+        } catch (IOException e) {
+            LOG.debug("Ack to {} failed: {}", remote, e.getMessage());
+        }
+    }
+
+    /**
+     * Cancels the channel's timers and hands back the sealed payloads that were never
+     * acknowledged, oldest first, so the caller can deliver them another way.
+     */
+    public synchronized List<ByteBuffer> close() {
+        closed = true;
+        cancelRetransmitTimer();
+        if (ackTimer != null) {
+            ackTimer.cancel();
+            ackTimer = null;
+        }
+        List<ByteBuffer> unacked = new ArrayList<>();
+        for (int seq = base; seq != nextSeq; seq++) {
+            Slot slot = slots[seq & (WINDOW - 1)];
+            if (!slot.acked) {
+                unacked.add(slot.packet.duplicate().position(HEADER_SIZE));
+            }
+        }
+        for (byte[] packet : backlog) {
+            unacked.add(ByteBuffer.wrap(packet));
+        }
+        backlog.clear();
+        base = nextSeq;
+        return unacked;
+    }
+
+    /** Packets sent but not yet acknowledged, plus those waiting for window space. */
+    public synchronized int getOutstandingCount() {
+        return (nextSeq - base) + backlog.size();
+    }
+
+    public synchronized long getRetransmittedCount() {
+        return retransmitted;
+    }
+
+    public synchronized long getRtoMillis() {
+        return rto;
+    }
+
+    /** Smoothed round trip time, or 0 before the first acknowledgement. */
+    public synchronized double getSmoothedRttMillis() {
+        return srtt;
+    }
+
+    public synchronized double getRttVariationMillis() {
+        return rttvar;
+    }
+
+    /** Also hands every round trip sample, in milliseconds, to the observer. */
+    public void setRttObserver(LongConsumer rttObserver) {
+        this.rttObserver = rttObserver;
+    }
+
+    private void onAck(int ackCum, long ackMask) {
+        long now = System.currentTimeMillis();
+        boolean progress = false;
+        int highestAcked = base - 1;
+        for (int seq = base; seq != nextSeq; seq++) {
+            Slot slot = slots[seq & (WINDOW - 1)];
+            int offset = seq - ackCum - 1;
+            boolean acked = offset < 0 || (offset < 64 && (ackMask & (1L << offset)) != 0);
+            if (acked && !slot.acked) {
+                slot.acked = true;
+                progress = true;
+                highestAcked = seq;
+                // Karn: retransmitted packets give ambiguous samples
+                if (!slot.retransmitted) {
+                    sampleRtt(now - slot.sentAt);
+                }
+            }
+        }
+        if (!progress) {
+            return;
+        }
+        // packets the receiver has skipped past several times are resent without
+        // waiting for the timer
+        for (int seq = base; seq - highestAcked < 0; seq++) {
+            Slot slot = slots[seq & (WINDOW - 1)];
+            if (!slot.acked && ++slot.skipped == FAST_RETRANSMIT_THRESHOLD && !closed) {
+                slot.retransmitted = true;
+                retransmitted++;
+                try {
+                    transmit(slot);
+                } catch (IOException e) {
+                    LOG.debug("Fast retransmission to {} failed: {}", remote, e.getMessage());
+                }
+            }
+        }
+        while (base != nextSeq && slots[base & (WINDOW - 1)].acked) {
+            base++;
+        }
+        try {
+            while (!backlog.isEmpty() && nextSeq - base < WINDOW) {
+                transmitNew(ByteBuffer.wrap(backlog.poll()));
+            }
+        } catch (IOException e) {
+            LOG.debug("Send to {} failed: {}", remote, e.getMessage());
+        }
+        cancelRetransmitTimer();
+        if (base != nextSeq && !closed) {
+            armRetransmitTimer(rto);
+        }
+    }
+
+    /** RFC 6298 smoothed RTT and variance; also undoes any timeout backoff. */
+    private void sampleRtt(long sample) {
+        if (srtt == 0) {
+            srtt = sample;
+            rttvar = sample / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - sample);
+            srtt = 0.875 * srtt + 0.125 * sample;
+        }
+        rto = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, (long) (srtt + Math.max(1, 4 * rttvar))));
+        LongConsumer observer = rttObserver;
+        if (observer != null) {
+            observer.accept(sample);
+        }
+    }
+}
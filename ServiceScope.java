@@ -0,0 +1,165 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns every thread a node starts. Threads are created for the scope's
+ * {@link ExecutionModel} and tracked until they finish, so {@link #shutdown} can
+ * interrupt all of them and wait for them to exit instead of leaving loops running
+ * after the node is gone.
+ *
+ * Virtual threads are looked up reflectively, so the tree still builds and runs on Java
+ * 17; there a scope asked for {@link ExecutionModel#VIRTUAL} falls back to PLATFORM.
+ */
+public final class ServiceScope implements ThreadFactory {
+    private static final Log LOG = Log.get("ServiceScope");
+
+    // Thread.ofVirtual().factory() and Executors.newThreadPerTaskExecutor, or null before Java 21
+    private static final ThreadFactory VIRTUAL_FACTORY;
+    private static final MethodHandle THREAD_PER_TASK;
+
+    static {
+        ThreadFactory factory = null;
+        MethodHandle threadPerTask = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object ofVirtual = lookup.findStatic(Thread.class, "ofVirtual",
+                MethodType.methodType(Class.forName("java.lang.Thread$Builder$OfVirtual"))).invoke();
+            factory = (ThreadFactory) lookup.findVirtual(builder, "factory",
+                MethodType.methodType(ThreadFactory.class)).invoke(ofVirtual);
+            threadPerTask = lookup.findStatic(Executors.class, "newThreadPerTaskExecutor",
+                MethodType.methodType(ExecutorService.class, ThreadFactory.class));
+        } catch (Throwable e) {
+            factory = null;
+            threadPerTask = null;
+        }
+        VIRTUAL_FACTORY = factory;
+        THREAD_PER_TASK = threadPerTask;
+    }
+
+    private final String name;
+    private final ExecutionModel model;
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final Set<ExecutorService> executors = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger threadIndex = new AtomicInteger();
+    private volatile boolean closed;
+
+    public ServiceScope(String name, ExecutionModel model) {
+        this.name = name;
+        if (model == ExecutionModel.VIRTUAL && VIRTUAL_FACTORY == null) {
+            LOG.warn("Virtual threads need Java 21; {} uses platform threads", name);
+            model = ExecutionModel.PLATFORM;
+        }
+        this.model = model;
+    }
+
+    /** The model in effect, which is PLATFORM if VIRTUAL was asked for but is unavailable. */
+    public ExecutionModel getModel() {
+        return model;
+    }
+
+    /** Creates an unstarted thread that belongs to this scope. */
+    @Override
+    public Thread newThread(Runnable task) {
+        return newThread(name + "-" + threadIndex.incrementAndGet(), task);
+    }
+
+    public Thread newThread(String threadName, Runnable task) {
+        if (closed) {
+            throw new IllegalStateException("Scope " + name + " is shut down");
+        }
+        Runnable tracked = () -> {
+            try {
+                task.run();
+            } finally {
+                threads.remove(Thread.currentThread());
+            }
+        };
+        Thread thread;
+        if (model == ExecutionModel.VIRTUAL) {
+            thread = VIRTUAL_FACTORY.newThread(tracked);
+            thread.setName(threadName);
+        } else {
+            thread = new Thread(tracked, threadName);
+        }
+        threads.add(thread);
+        return thread;
+    }
+
+    public Thread start(String threadName, Runnable task) {
+        Thread thread = newThread(threadName, task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Executor for short tasks: a thread per task under VIRTUAL, otherwise a fixed pool
+     * of the given size. Shut down together with the scope.
+     */
+    public ExecutorService newTaskExecutor(String executorName, int platformThreads) {
+        AtomicInteger index = new AtomicInteger();
+        ThreadFactory factory = task -> newThread(executorName + "-" + index.incrementAndGet(), task);
+        ExecutorService executor = model == ExecutionModel.VIRTUAL
+            ? newThreadPerTaskExecutor(factory)
+            : Executors.newFixedThreadPool(platformThreads, factory);
+        executors.add(executor);
+        return executor;
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            return (ExecutorService) THREAD_PER_TASK.invokeExact(factory);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Number of threads started by this scope that have not finished yet. */
+    public int getLiveThreadCount() {
+        return threads.size();
+    }
+
+    /**
+     * Interrupts every thread of the scope and waits up to the timeout for them to
+     * finish. Returns false if some were still running when the time ran out.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        closed = true;
+        for (ExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            if (thread == Thread.currentThread()) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            try {
+                if (remaining > 0) {
+                    // join(0) would wait forever
+                    thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                }
+                if (thread.isAlive()) {
+                    LOG.warn("{} thread {} did not stop in time", name, thread.getName());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return threads.stream().allMatch(thread -> thread == Thread.currentThread());
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel (Varghese and Lauck) shared by every {@link Node} in the process.
+ *
+ * One thread advances the wheel a tick at a time and hands expired timeouts to a small
+ * worker pool, so thousands of heartbeat, retry and timeout timers cost a single
+ * wakeup per tick instead of a thread or a sleep loop each. Scheduling and cancelling
+ * are O(1); expiry is accurate to one tick. The workers are shared by every node, so
+ * tasks must not block: work that touches files belongs on an executor of the caller's
+ * {@link ServiceScope}, with the timer only handing it over.
+ */
+public final class TimerWheel {
+    private static final Log LOG = Log.get("TimerWheel");
+
+    /** Handle for a scheduled task. */
+    public interface Timeout {
+        /** Prevents future runs; returns false if it was already cancelled. */
+        boolean cancel();
+
+        boolean isCancelled();
+    }
+
+    private static final long DEFAULT_TICK_NANOS =
+        TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.timer.tickMicros", 1000));
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+    private static final int DEFAULT_WORKERS = Integer.getInteger("chat.timer.workers", 2);
+
+    private static volatile TimerWheel shared;
+
+    private final long tickNanos;
+    private final Entry[] buckets;
+    private final int mask;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final ExecutorService workers;
+    private final Thread ticker;
+    private final long startTime;
+    private volatile boolean running = true;
+    private long tick;
+
+    /** Process-wide wheel; its threads are daemons so it never keeps the JVM alive. */
+    public static TimerWheel shared() {
+        TimerWheel wheel = shared;
+        if (wheel == null) {
+            synchronized (TimerWheel.class) {
+                wheel = shared;
+                if (wheel == null) {
+                    wheel = new TimerWheel("TimerWheel", DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE, DEFAULT_WORKERS);
+                    shared = wheel;
+                }
+            }
+        }
+        return wheel;
+    }
+
+    public TimerWheel(String name, long tickNanos, int wheelSize, int workerThreads) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+        }
+        this.tickNanos = tickNanos;
+        this.buckets = new Entry[wheelSize];
+        this.mask = wheelSize - 1;
+        AtomicInteger workerIndex = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread thread = new Thread(r, name + "-worker-" + workerIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.startTime = System.nanoTime();
+        this.ticker = new Thread(this::run, name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return add(new Entry(task, System.nanoTime() + unit.toNanos(delay), 0));
+    }
+
+    /**
+     * Runs the task every period after the initial delay, keeping to the original
+     * schedule. Runs that fall behind are not replayed: if the next run is already due
+     * when a late one finishes, it runs on the next tick and the schedule continues a
+     * period after that.
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return add(new Entry(task, System.nanoTime() + unit.toNanos(initialDelay), unit.toNanos(period)));
+    }
+
+    private Entry add(Entry entry) {
+        if (!running) {
+            throw new RejectedExecutionException("Timer wheel stopped");
+        }
+        pending.add(entry);
+        return entry;
+    }
+
+    /** Number of timeouts not yet placed in the wheel; useful when checking for backlog. */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void stop() {
+        running = false;
+        ticker.interrupt();
+        workers.shutdownNow();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                if (Thread.interrupted() && !running) {
+                    return;
+                }
+                continue;
+            }
+            transferPending();
+            expire(buckets[(int) (tick & mask)], (int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        // bounded so a flood of new timeouts cannot starve expiry
+        for (int i = 0; i < 100_000; i++) {
+            Entry entry = pending.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entry.cancelled) {
+                continue;
+            }
+            long targetTick = Math.max(tick, (entry.deadline - startTime + tickNanos - 1) / tickNanos);
+            entry.rounds = (targetTick - tick) / buckets.length;
+            int index = (int) (targetTick & mask);
+            entry.next = buckets[index];
+            buckets[index] = entry;
+        }
+    }
+
+    private void expire(Entry head, int index) {
+        Entry previous = null;
+        Entry entry = head;
+        while (entry != null) {
+            Entry next = entry.next;
+            boolean remove = entry.cancelled;
+            if (!remove && entry.rounds <= 0) {
+                remove = true;
+                dispatch(entry);
+            } else if (!remove) {
+                entry.rounds--;
+            }
+            if (remove) {
+                if (previous == null) {
+                    buckets[index] = next;
+                } else {
+                    previous.next = next;
+                }
+                entry.next = null;
+            } else {
+                previous = entry;
+            }
+            entry = next;
+        }
+    }
+
+    private void dispatch(Entry entry) {
+        try {
+            workers.execute(() -> {
+                if (entry.cancelled) {
+                    return;
+                }
+                try {
+                    entry.task.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Timer task failed", e);
+                }
+                if (entry.period > 0 && !entry.cancelled && running) {
+                    entry.deadline = Math.max(entry.deadline + entry.period, System.nanoTime());
+                    pending.add(entry);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopping
+        }
+    }
+
+    private static final class Entry implements Timeout {
+        final Runnable task;
+        final long period;
+        volatile long deadline;
+        volatile boolean cancelled;
+        long rounds;
+        Entry next;
+
+        Entry(Runnable task, long deadline, long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
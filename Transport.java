@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Datagram transport used by {@link Node}. Received buffers are handed to the receiver
+ * and stay owned by it until passed back to {@link #release(ByteBuffer)}, which returns
+ * pooled ones to the transport's {@link BufferPool}.
+ */
+public interface Transport {
+    interface Receiver {
+        void onPacket(ByteBuffer data, InetSocketAddress source);
+    }
+
+    /**
+     * Starts receiving on a thread made by the factory, e.g. the node's {@link ServiceScope},
+     * so the loop is counted and joined on shutdown like the node's other services.
+     */
+    void start(Receiver receiver, ThreadFactory threads) throws IOException;
+
+    /** Sends the buffer's remaining bytes as one datagram. */
+    void send(ByteBuffer data, InetSocketAddress target) throws IOException;
+
+    /** Returns a buffer previously delivered to the receiver. */
+    void release(ByteBuffer buffer);
+
+    /** Borrows a buffer of at least the given capacity for {@link #send}; give it back with {@link #release}. */
+    ByteBuffer acquire(int capacity);
+
+    void close();
+}
@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Carries what a {@link Node} has to show from its network threads to a user interface,
+ * without either side waiting on the other. Register it with {@link Node#addListener}.
+ *
+ * Publishing only queues the event. Everything published within one frame is handed
+ * to the subscriber as a single {@link Batch}, at most once per frame interval and on
+ * the subscriber's own executor, e.g. the Swing event thread. Group list changes
+ * collapse into one flag per frame. Queued messages are capped; when a storm exceeds
+ * the cap the oldest are dropped and the batch says so, since the subscriber can
+ * re-read them from history. With no subscriber nothing is queued.
+ */
+public class UiEventBus implements NodeListener {
+    private static final Log LOG = Log.get("UiEventBus");
+
+    /** Receives the events of one frame. */
+    public interface Subscriber {
+        void onEvents(Batch batch);
+    }
+
+    /** The events published during one frame. */
+    public static final class Batch {
+        private final List<Message> messages;
+        private final boolean messagesDropped;
+        private final boolean groupsChanged;
+        private final List<String> notices;
+
+        Batch(List<Message> messages, boolean messagesDropped, boolean groupsChanged, List<String> notices) {
+            this.messages = messages;
+            this.messagesDropped = messagesDropped;
+            this.groupsChanged = groupsChanged;
+            this.notices = notices;
+        }
+
+        /** Chat and group messages sent or delivered, oldest first. */
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        /** Whether older messages of this frame were dropped to stay within the cap. */
+        public boolean isMessagesDropped() {
+            return messagesDropped;
+        }
+
+        /** Whether the node's groups or their members changed. */
+        public boolean isGroupsChanged() {
+            return groupsChanged;
+        }
+
+        /** Text to show the user. */
+        public List<String> getNotices() {
+            return notices;
+        }
+    }
+
+    private final TimerWheel timer;
+    private final long frameIntervalMillis;
+    private final int maxPendingMessages;
+    private final Queue<Message> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+    private final AtomicBoolean messagesDropped = new AtomicBoolean();
+    private final AtomicBoolean groupsChanged = new AtomicBoolean();
+    private final Queue<String> notices = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private volatile Subscriber subscriber;
+    private volatile Executor executor;
+    private volatile long lastFrame;
+
+    public UiEventBus(TimerWheel timer, long frameIntervalMillis, int maxPendingMessages) {
+        this.timer = timer;
+        this.frameIntervalMillis = frameIntervalMillis;
+        this.maxPendingMessages = maxPendingMessages;
+    }
+
+    /** Sets the one subscriber, whose batches run on the given executor. */
+    public void subscribe(Subscriber subscriber, Executor executor) {
+        this.executor = executor;
+        this.subscriber = subscriber;
+    }
+
+    @Override
+    public void messageReceived(Message message) {
+        publishMessage(message);
+    }
+
+    @Override
+    public void messageSent(Message message) {
+        publishMessage(message);
+    }
+
+    @Override
+    public void groupsChanged() {
+        publishGroupsChanged();
+    }
+
+    @Override
+    public void notice(String text) {
+        publishNotice(text);
+    }
+
+    public void publishMessage(Message message) {
+        if (subscriber == null) {
+            return;
+        }
+        messages.add(message);
+        if (pendingMessages.incrementAndGet() > maxPendingMessages && messages.poll() != null) {
+            pendingMessages.decrementAndGet();
+            messagesDropped.set(true);
+        }
+        published();
+    }
+
+    public void publishGroupsChanged() {
+        if (subscriber == null) {
+            return;
+        }
+        groupsChanged.set(true);
+        published();
+    }
+
+    public void publishNotice(String notice) {
+        if (subscriber == null) {
+            return;
+        }
+        notices.add(notice);
+        published();
+    }
+
+    private void published() {
+        published.increment();
+        if (scheduled.compareAndSet(false, true)) {
+            long delay = Math.max(0, lastFrame + frameIntervalMillis - System.currentTimeMillis());
+            timer.schedule(() -> executor.execute(this::deliver), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void deliver() {
+        lastFrame = System.currentTimeMillis();
+        // anything published from here on goes into the next frame
+        scheduled.set(false);
+        List<Message> batch = new ArrayList<>();
+        Message message;
+        while ((message = messages.poll()) != null) {
+            pendingMessages.decrementAndGet();
+            batch.add(message);
+        }
+        List<String> texts = new ArrayList<>();
+        String notice;
+        while ((notice = notices.poll()) != null) {
+            texts.add(notice);
+        }
+        boolean dropped = messagesDropped.getAndSet(false);
+        boolean groups = groupsChanged.getAndSet(false);
+        if (batch.isEmpty() && texts.isEmpty() && !dropped && !groups) {
+            return;
+        }
+        frames.increment();
+        try {
+            subscriber.onEvents(new Batch(batch, dropped, groups,
+                texts.isEmpty() ? Collections.emptyList() : texts));
+        } catch (RuntimeException e) {
+            LOG.warn("UI event subscriber failed", e);
+        }
+    }
+
+    /** Events published while subscribed. */
+    public long getPublishedCount() {
+        return published.sum();
+    }
+
+    /** Batches handed to the subscriber. */
+    public long getFrameCount() {
+        return frames.sum();
+    }
+}
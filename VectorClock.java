@@ -0,0 +1,279 @@
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Vector clock backed by primitive arrays. Node IDs are mapped once to the dense
+ * handles of {@link NodeIds}; a clock stores only its own entries as two parallel
+ * arrays sorted by handle, so size, merge and diff cost grow with the entries actually
+ * present rather than with every node ever seen.
+ *
+ * A clock can be a delta: only the entries that changed since the sender's previous
+ * message in the same conversation. See {@link CausalDelivery} for how deltas are
+ * rebuilt into full clocks.
+ *
+ * Implements {@code Map<String, Integer>} so it can stand in for the plain map in
+ * {@link Message}; it is serialized as a {@link HashMap} for legacy peers. Instances are
+ * not thread-safe.
+ */
+public final class VectorClock extends AbstractMap<String, Integer> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int[] indices;
+    private int[] counts;
+    private int size;
+    private boolean delta;
+
+    public VectorClock() {
+        this(4);
+    }
+
+    private VectorClock(int capacity) {
+        this.indices = new int[capacity];
+        this.counts = new int[capacity];
+    }
+
+    /** Copies a plain map clock, e.g. one decoded from a legacy peer. */
+    public static VectorClock from(Map<String, Integer> clock) {
+        if (clock instanceof VectorClock) {
+            return (VectorClock) clock;
+        }
+        VectorClock result = new VectorClock(Math.max(4, clock.size()));
+        for (Map.Entry<String, Integer> entry : clock.entrySet()) {
+            result.set(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /** Dense index of a node ID, assigned on first use; the node's {@link NodeIds} handle. */
+    static int indexOf(String nodeId) {
+        return NodeIds.handle(nodeId);
+    }
+
+    private int find(int index) {
+        return Arrays.binarySearch(indices, 0, size, index);
+    }
+
+    public int getCount(String nodeId) {
+        int index = NodeIds.find(nodeId);
+        if (index < 0) {
+            return 0;
+        }
+        int slot = find(index);
+        return slot >= 0 ? counts[slot] : 0;
+    }
+
+    public boolean contains(String nodeId) {
+        int index = NodeIds.find(nodeId);
+        return index >= 0 && find(index) >= 0;
+    }
+
+    public void set(String nodeId, int count) {
+        int index = indexOf(nodeId);
+        int slot = find(index);
+        if (slot >= 0) {
+            counts[slot] = count;
+            return;
+        }
+        slot = -slot - 1;
+        if (size == indices.length) {
+            indices = Arrays.copyOf(indices, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        System.arraycopy(indices, slot, indices, slot + 1, size - slot);
+        System.arraycopy(counts, slot, counts, slot + 1, size - slot);
+        indices[slot] = index;
+        counts[slot] = count;
+        size++;
+    }
+
+    public int increment(String nodeId) {
+        int count = getCount(nodeId) + 1;
+        set(nodeId, count);
+        return count;
+    }
+
+    /** Raises every entry to at least the other clock's value. */
+    public void mergeMax(VectorClock other) {
+        if (other.size * 4 <= size) {
+            // a delta against a full clock: look each entry up instead of walking both
+            for (int j = 0; j < other.size; j++) {
+                int slot = find(other.indices[j]);
+                if (slot >= 0) {
+                    counts[slot] = Math.max(counts[slot], other.counts[j]);
+                } else {
+                    set(NodeIds.name(other.indices[j]), other.counts[j]);
+                }
+            }
+            return;
+        }
+        int[] mergedIndices = new int[size + other.size];
+        int[] mergedCounts = new int[size + other.size];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && indices[i] < other.indices[j])) {
+                mergedIndices[n] = indices[i];
+                mergedCounts[n++] = counts[i++];
+            } else if (i == size || other.indices[j] < indices[i]) {
+                mergedIndices[n] = other.indices[j];
+                mergedCounts[n++] = other.counts[j++];
+            } else {
+                mergedIndices[n] = indices[i];
+                mergedCounts[n++] = Math.max(counts[i++], other.counts[j++]);
+            }
+        }
+        indices = mergedIndices;
+        counts = mergedCounts;
+        size = n;
+    }
+
+    /** Entries of this clock that differ from the base, marked as a delta. */
+    public VectorClock diff(VectorClock base) {
+        VectorClock result = new VectorClock(Math.max(4, Math.min(size, 8)));
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < base.size && base.indices[j] < indices[i]) {
+                j++;
+            }
+            if (j == base.size || base.indices[j] != indices[i] || base.counts[j] != counts[i]) {
+                result.append(indices[i], counts[i]);
+            }
+        }
+        result.delta = true;
+        return result;
+    }
+
+    /** Adds an entry known to sort after every existing one. */
+    private void append(int index, int count) {
+        if (size == indices.length) {
+            indices = Arrays.copyOf(indices, Math.max(4, size * 2));
+            counts = Arrays.copyOf(counts, Math.max(4, size * 2));
+        }
+        indices[size] = index;
+        counts[size++] = count;
+    }
+
+    /** Drops entries for nodes outside the given set, e.g. members who left a room. */
+    public void retain(Collection<String> nodeIds) {
+        Set<Integer> keep = new HashSet<>();
+        for (String nodeId : nodeIds) {
+            int index = NodeIds.find(nodeId);
+            if (index >= 0) {
+                keep.add(index);
+            }
+        }
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (keep.contains(indices[i])) {
+                indices[n] = indices[i];
+                counts[n++] = counts[i];
+            }
+        }
+        size = n;
+    }
+
+    public VectorClock copy() {
+        VectorClock copy = new VectorClock(Math.max(4, size));
+        System.arraycopy(indices, 0, copy.indices, 0, size);
+        System.arraycopy(counts, 0, copy.counts, 0, size);
+        copy.size = size;
+        copy.delta = delta;
+        return copy;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /** Number of entries; the same as {@link #size()} without the map contract's overhead. */
+    public int entryCount() {
+        return size;
+    }
+
+    public String nodeIdAt(int position) {
+        return NodeIds.name(indices[position]);
+    }
+
+    public int countAt(int position) {
+        return counts[position];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Integer get(Object key) {
+        return key instanceof String && contains((String) key) ? getCount((String) key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && contains((String) key);
+    }
+
+    @Override
+    public Integer put(String key, Integer value) {
+        Integer previous = get(key);
+        set(key, value);
+        return previous;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Integer>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Integer>>() {
+            @Override
+            public Iterator<Map.Entry<String, Integer>> iterator() {
+                return new Iterator<Map.Entry<String, Integer>>() {
+                    private int position;
+
+                    @Override
+                    public boolean hasNext() {
+                        return position < size;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Integer> next() {
+                        if (position >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, Integer> entry =
+                            new SimpleImmutableEntry<>(NodeIds.name(indices[position]), counts[position]);
+                        position++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /** Legacy peers only know the plain map. */
+    private Object writeReplace() {
+        return new HashMap<>(this);
+    }
+
+    @Override
+    public String toString() {
+        return (delta ? "delta" : "") + super.toString();
+    }
+}